@@ -0,0 +1,104 @@
+package WebServer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures answering a GET request for a file, from the parsed request to
+ * the last byte written, at several file sizes. Small files come from the
+ * file cache, the largest one is too big to be cached and is sent with
+ * transferTo. The bytes go to /dev/null, so only the server's own work and
+ * the system calls are measured, not a network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileServingBenchmark {
+    @Param({"1024", "16384", "262144", "4194304"})
+    public int size;
+
+    private Path directory;
+    private ServerConfig config;
+    private RequestProcessor processor;
+    private RequestParser parser;
+    private final HeaderWriter headers = new HeaderWriter();
+    private FileChannel devNull;
+    private OutputStream os;
+
+    @Setup
+    public void setup() throws IOException{
+        // Files are served relative to the working directory
+        directory = Files.createTempDirectory(Paths.get("").toAbsolutePath(), "bench-");
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        Path file = Files.write(directory.resolve("file.bin"), content);
+
+        config = new ServerConfig();
+        FileCache cache = new FileCache(config, new MimeTypes(config));
+        CompressionCache compressionCache = new CompressionCache(config);
+        PathCache pathCache = new PathCache(config);
+        processor = new RequestProcessor(config, cache, compressionCache, pathCache, request -> null,
+                new Metrics(cache, compressionCache, pathCache, null), null);
+
+        String target = "/" + directory.getFileName() + "/" + file.getFileName();
+        parser = new RequestParser(processor.getBodyHandler(), config.getMaxBodyBytes());
+        parser.parse(ByteBuffer.wrap(("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII)));
+
+        devNull = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+        os = new BufferedOutputStream(Channels.newOutputStream(devNull));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        os.close();
+        Files.deleteIfExists(directory.resolve("file.bin"));
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * Serves the file the way the blocking engine does.
+     *
+     * @return The number of bytes written
+     */
+    @Benchmark
+    public long serve() throws IOException{
+        HttpResponse response = processor.process(parser.getRequest());
+        response.setKeepAlive(true);
+        try{
+            long written = response.writeTo(os, devNull, config.getZeroCopyThreshold(), headers.write(response));
+            os.flush();
+            return written;
+        }finally{
+            response.close();
+        }
+    }
+}
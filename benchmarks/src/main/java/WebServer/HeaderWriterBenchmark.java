@@ -0,0 +1,64 @@
+package WebServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding the headers of a response and deciding its content
+ * type, which are done for every response that is sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderWriterBenchmark {
+    private static final String[] FILE_NAMES = {"./index.html", "./image.jpg", "./docs/page.htm", "./download.bin"};
+
+    private final HeaderWriter writer = new HeaderWriter();
+    private final MimeTypes mimeTypes = new MimeTypes(new ServerConfig());
+    private HttpResponse small;
+    private HttpResponse file;
+    private int next;
+
+    @Setup
+    public void setup(){
+        Status ok = new Status(200, "OK");
+        small = HttpResponse.ofBytes(ok, "text/html; charset=utf-8", new byte[174]);
+        small.setKeepAlive(true);
+        // The headers a cached file is sent with
+        file = HttpResponse.ofBuffer(ok, "image/jpeg", ByteBuffer.allocate(31706))
+                .addHeader("Accept-Ranges", "bytes")
+                .addHeader("ETag", "\"15fec61a0b0-7bda\"")
+                .addHeader("Last-Modified", "Fri, 24 Nov 2017 04:55:42 GMT")
+                .addHeader("Cache-Control", "no-cache");
+        file.setKeepAlive(true);
+    }
+
+    @Benchmark
+    public ByteBuffer writeSmall(){
+        return writer.write(small);
+    }
+
+    @Benchmark
+    public ByteBuffer writeFile(){
+        return writer.write(file);
+    }
+
+    @Benchmark
+    public String contentType(){
+        return mimeTypes.lookup(FILE_NAMES[next++ & 3]);
+    }
+}
@@ -0,0 +1,284 @@
+package WebServer;
+
+import Common.Histogram;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a server over loopback with a fixed number of keep-alive
+ * connections. Every connection sends its next request as soon as the
+ * response to the last one has arrived, so the load is as high as the
+ * server can take at that concurrency. Reports the throughput and the
+ * latency percentiles measured after a warmup.
+ *
+ * Unless a port is given, a server is started in this JVM, configured from
+ * the environment like WebServer.main, so WEBSERVER_ENGINE=nio compares the
+ * engines with the same harness. A server in its own JVM, driven with
+ * --port, keeps the harness threads from competing with it for the JIT
+ * and the garbage collector.
+ *
+ * java -cp benchmarks/target/benchmarks.jar WebServer.LoadHarness
+ *      [-c connections] [-d seconds] [-w warmup seconds] [-p path] [--port port]
+ */
+public class LoadHarness {
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9", "max"};
+    private static final int STARTUP_TIMEOUT_MILLIS = 10000;
+
+    private final int port;
+    private final byte[] request;
+    private final Histogram latencies = new Histogram();
+    private final LongAdder errors = new LongAdder();
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+
+    /**
+     * @param port The port of the server
+     * @param path The path every request asks for
+     */
+    LoadHarness(int port, String path){
+        this.port = port;
+        this.request = ("GET " + path + " HTTP/1.1\r\nHost: localhost:" + port + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static void main(String[] args) throws Exception{
+        int connections = 16;
+        int seconds = 10;
+        int warmup = 3;
+        String path = "/index.html";
+        int port = -1;
+        for(int i = 0; i + 1 < args.length; i += 2){
+            switch(args[i]){
+                case "-c":
+                    connections = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-d":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-w":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-p":
+                    path = args[i + 1];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if(port < 0){
+            port = startServer();
+        }
+
+        LoadHarness harness = new LoadHarness(port, path);
+        System.out.println(connections + " connections, " + seconds + " s after " + warmup +
+                " s of warmup, GET " + path + " on port " + port);
+        harness.run(connections, warmup * 1000L, seconds * 1000L);
+        harness.report(seconds);
+        System.exit(0);
+    }
+
+    /**
+     * Starts a server in this JVM on a free port and waits until it accepts connections.
+     *
+     * @return The port of the server
+     * @throws IOException If the server did not start
+     */
+    private static int startServer() throws IOException, InterruptedException{
+        int port;
+        try(ServerSocket socket = new ServerSocket(0)){
+            port = socket.getLocalPort();
+        }
+        ServerConfig config = ServerConfig.fromEnvironment().setPort(port);
+        Thread server = new Thread(() -> WebServer.StartServer(config), "server");
+        server.setDaemon(true);
+        server.start();
+
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while(true){
+            try(Socket socket = new Socket()){
+                socket.connect(new InetSocketAddress("localhost", port));
+                return port;
+            }catch(IOException e){
+                if(System.currentTimeMillis() > deadline){
+                    throw new IOException("The server did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Runs the connections until the warmup and the measurement are over.
+     *
+     * @param connections The number of connections
+     * @param warmupMillis How long to send requests before measuring
+     * @param durationMillis How long to measure
+     */
+    void run(int connections, long warmupMillis, long durationMillis) throws InterruptedException{
+        long now = System.nanoTime();
+        measureFrom = now + warmupMillis * 1_000_000;
+        measureUntil = measureFrom + durationMillis * 1_000_000;
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < connections; i++){
+            Thread thread = new Thread(this::drive, "client-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+    }
+
+    /**
+     * Sends requests on one connection, opening a new one whenever the
+     * server closes it, until the measurement is over.
+     */
+    private void drive(){
+        while(System.nanoTime() < measureUntil){
+            try(Socket socket = new Socket("localhost", port)){
+                socket.setTcpNoDelay(true);
+                OutputStream os = socket.getOutputStream();
+                InputStream is = new BufferedInputStream(socket.getInputStream());
+                boolean open = true;
+                while(open){
+                    long start = System.nanoTime();
+                    if(start >= measureUntil){
+                        return;
+                    }
+                    os.write(request);
+                    os.flush();
+                    Response response = readResponse(is);
+                    long end = System.nanoTime();
+                    if(start >= measureFrom){
+                        if(response.status >= 400){
+                            errors.increment();
+                        }else{
+                            latencies.record(end - start);
+                        }
+                    }
+                    open = !response.close;
+                }
+            }catch(IOException e){
+                if(System.nanoTime() >= measureFrom){
+                    errors.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * What the harness needs to know about a response.
+     */
+    private static final class Response {
+        private int status;
+        private boolean close;
+    }
+
+    /**
+     * Reads a response and skips its body.
+     *
+     * @param is The input stream of the connection
+     * @return The status of the response and if the server closes the connection
+     * @throws IOException If the connection was closed or the response is malformed
+     */
+    private static Response readResponse(InputStream is) throws IOException{
+        Response response = new Response();
+        String statusLine = readLine(is);
+        if(statusLine.length() < 12){
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        response.status = Integer.parseInt(statusLine.substring(9, 12));
+
+        long contentLength = 0;
+        boolean chunked = false;
+        String line;
+        while(!(line = readLine(is)).isEmpty()){
+            int colon = line.indexOf(':');
+            if(colon < 0){
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if(name.equalsIgnoreCase("Content-Length")){
+                contentLength = Long.parseLong(value);
+            }else if(name.equalsIgnoreCase("Transfer-Encoding")){
+                chunked = value.equalsIgnoreCase("chunked");
+            }else if(name.equalsIgnoreCase("Connection")){
+                response.close = value.equalsIgnoreCase("close");
+            }
+        }
+
+        if(chunked){
+            long size;
+            while((size = Long.parseLong(readLine(is).split(";")[0].trim(), 16)) > 0){
+                skip(is, size);
+                readLine(is);
+            }
+            // The trailers, which end with an empty line
+            while(!readLine(is).isEmpty()){
+            }
+        }else{
+            skip(is, contentLength);
+        }
+        return response;
+    }
+
+    private static String readLine(InputStream is) throws IOException{
+        StringBuilder line = new StringBuilder();
+        int b;
+        while((b = is.read()) != '\n'){
+            if(b == -1){
+                throw new IOException("Connection closed");
+            }
+            if(b != '\r'){
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void skip(InputStream is, long count) throws IOException{
+        while(count > 0){
+            long skipped = is.skip(count);
+            if(skipped <= 0){
+                if(is.read() == -1){
+                    throw new IOException("Connection closed");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Prints the throughput and the latency percentiles.
+     *
+     * @param seconds How long was measured
+     */
+    void report(int seconds){
+        Histogram.Snapshot snapshot = latencies.snapshot();
+        System.out.printf("Requests:   %d (%d errors)%n", snapshot.getCount(), errors.sum());
+        System.out.printf("Throughput: %.1f requests/s%n", snapshot.getCount() / (double) seconds);
+        StringBuilder line = new StringBuilder("Latency:   ");
+        for(int i = 0; i < PERCENTILES.length; i++){
+            line.append(String.format(" %s %.3f ms", PERCENTILE_NAMES[i], snapshot.quantile(PERCENTILES[i]) / 1e6));
+        }
+        System.out.println(line);
+    }
+}
@@ -0,0 +1,93 @@
+package WebServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing a request line and its headers, the way a connection
+ * does for every request it serves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+    private static final String CURL = "GET /index.html HTTP/1.1\r\n" +
+            "Host: localhost:5000\r\n" +
+            "User-Agent: curl/8.0.1\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+    private static final String BROWSER = "GET /images/image.jpg HTTP/1.1\r\n" +
+            "Host: localhost:5000\r\n" +
+            "Connection: keep-alive\r\n" +
+            "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\r\n" +
+            "sec-ch-ua-mobile: ?0\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36\r\n" +
+            "sec-ch-ua-platform: \"Linux\"\r\n" +
+            "Accept: image/avif,image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8\r\n" +
+            "Sec-Fetch-Site: same-origin\r\n" +
+            "Sec-Fetch-Mode: no-cors\r\n" +
+            "Sec-Fetch-Dest: image\r\n" +
+            "Referer: http://localhost:5000/index.html\r\n" +
+            "Accept-Encoding: gzip, deflate, br, zstd\r\n" +
+            "Accept-Language: en-US,en;q=0.9\r\n" +
+            "If-None-Match: \"15fec61a0b0-7bda\"\r\n" +
+            "If-Modified-Since: Fri, 24 Nov 2017 04:55:42 GMT\r\n" +
+            "\r\n";
+
+    @Param({"curl", "browser"})
+    public String client;
+
+    private RequestParser parser;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup(){
+        // Requests without a body never reach the body handler
+        parser = new RequestParser(request -> null, 1024 * 1024);
+        buffer = ByteBuffer.wrap((client.equals("curl") ? CURL : BROWSER).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses the request without looking at it.
+     */
+    @Benchmark
+    public boolean parse(){
+        parser.reset();
+        buffer.rewind();
+        return parser.parse(buffer);
+    }
+
+    /**
+     * Parses the request and asks for what answering a GET request needs,
+     * which makes the strings the parser itself avoids.
+     */
+    @Benchmark
+    public void parseAndRead(Blackhole blackhole){
+        parser.reset();
+        buffer.rewind();
+        parser.parse(buffer);
+        Request request = parser.getRequest();
+        blackhole.consume(request.getFileName());
+        blackhole.consume(request.isKeepAlive());
+        blackhole.consume(request.getHeader("accept-encoding"));
+        blackhole.consume(request.getHeader("if-none-match"));
+    }
+}
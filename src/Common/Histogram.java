@@ -0,0 +1,125 @@
+package Common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram in the style of HdrHistogram. Every power of two is
+ * split into 16 linear buckets, so a recorded value is off by at most about
+ * 6% however large it is, while the whole range from 1 ns to about 18
+ * minutes fits in a few hundred buckets. Each bucket is a LongAdder, so
+ * threads recording at the same time write to their own cells instead of
+ * contending for one counter. Shared by the server, for its metrics, and
+ * the load generator of the web client, which measures it from the outside.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    // Larger values are recorded as this one
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram(){
+        for(int i = 0; i < BUCKETS; i++){
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos A duration in nanoseconds
+     */
+    public void record(long nanos){
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        counts[index(value)].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Finds the bucket of a value. Values below 32 have a bucket each, from
+     * there on the top five bits of the value decide its bucket.
+     */
+    private static int index(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return The highest value that is recorded in a bucket
+     */
+    private static long highestValue(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index - shift * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * A consistent copy of the histogram, so the quantiles, the count and
+     * the sum all describe the same recordings.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        private Snapshot(long[] counts, long count, long sum){
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        /**
+         * @return The sum of all recorded values in nanoseconds
+         */
+        public long getSum(){
+            return sum;
+        }
+
+        /**
+         * @param quantile The quantile, such as 0.99
+         * @return The value in nanoseconds that the given share of the recordings is at or below
+         */
+        public long quantile(double quantile){
+            if(count == 0){
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++){
+                seen += counts[i];
+                if(seen >= rank){
+                    return highestValue(i);
+                }
+            }
+            return MAX_VALUE;
+        }
+    }
+
+    /**
+     * Copies the histogram. Recording goes on while the copy is made, so
+     * the count is taken from the copied buckets rather than read separately.
+     *
+     * @return The copy
+     */
+    public Snapshot snapshot(){
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            copy[i] = counts[i].sum();
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum());
+    }
+}
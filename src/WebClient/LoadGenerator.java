@@ -0,0 +1,331 @@
+package WebClient;
+
+import Common.Histogram;
+
+import java.io.IOException;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts a server under load at a fixed request rate and reports the
+ * throughput, the errors and the latency distribution.
+ *
+ * The load is open: requests are sent on a schedule, whether or not the
+ * earlier ones have been answered, and their latency is measured from when
+ * they were scheduled to be sent. A server that stalls therefore shows up
+ * in the latencies of every request that should have been sent during the
+ * stall, instead of hiding behind a client that stopped sending, which is
+ * the coordinated omission closed loop load generators suffer from.
+ *
+ * Requests are sent asynchronously with java.net.http.HttpClient over
+ * keep-alive connections. At most as many requests as there are connections
+ * are in flight, so the client never opens more connections than that. A
+ * request that has to wait for a connection still counts the wait.
+ */
+public class LoadGenerator {
+    static final String POST_DATA = "<name attribute=\"value\">martin</name>\r\n";
+    private static final double[] PERCENTILES = {0.5, 0.75, 0.9, 0.99, 0.999, 0.9999, 1.0};
+    private static final String[] PERCENTILE_NAMES = {"50%", "75%", "90%", "99%", "99.9%", "99.99%", "max"};
+
+    /**
+     * One kind of request of the mix, with its own latencies.
+     */
+    private static final class Target {
+        private final String method;
+        private final String path;
+        private final int weight;
+        private final HttpRequest request;
+        private final Histogram latencies = new Histogram();
+
+        private Target(String method, String path, int weight, HttpRequest request){
+            this.method = method;
+            this.path = path;
+            this.weight = weight;
+            this.request = request;
+        }
+    }
+
+    private final HttpClient client;
+    private final List<Target> targets = new ArrayList<>();
+    private int totalWeight = 0;
+    private final int connections;
+    private final int rate;
+    private final Semaphore inFlight;
+    private final Histogram latencies = new Histogram();
+    private final LongAdder completed = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Duration timeout;
+    private final URI base;
+    // Requests scheduled before this are part of the warmup
+    private volatile long measureFrom;
+    // From the end of the warmup until the last response arrived
+    private long measuredNanos;
+
+    /**
+     * @param base The server to send the requests to, such as http://localhost:5000
+     * @param connections The most connections, and so requests, in flight at a time
+     * @param rate The number of requests to send per second
+     * @param timeoutMillis How long to wait for a response
+     */
+    LoadGenerator(URI base, int connections, int rate, int timeoutMillis){
+        this.base = base;
+        this.connections = connections;
+        this.rate = rate;
+        this.inFlight = new Semaphore(connections);
+        this.timeout = Duration.ofMillis(timeoutMillis);
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    /**
+     * Usage: WebClient --load URL [-c connections] [-r requests/s] [-d seconds]
+     * [-w warmup seconds] [-t timeout ms] [-m "METHOD PATH [WEIGHT]"]... The
+     * -m option can be given several times to send a mix of requests. Without
+     * it, the path of the URL is requested with GET.
+     *
+     * @param args The arguments after --load
+     */
+    public static void main(String args[]){
+        String url = null;
+        int connections = 16;
+        int rate = 1000;
+        int seconds = 10;
+        int warmup = 2;
+        int timeoutMillis = 5000;
+        List<String> mix = new ArrayList<>();
+        try{
+            for(int i = 0; i < args.length; i++){
+                switch(args[i]){
+                    case "-c":
+                        connections = Integer.parseInt(args[++i]);
+                        break;
+                    case "-r":
+                        rate = Integer.parseInt(args[++i]);
+                        break;
+                    case "-d":
+                        seconds = Integer.parseInt(args[++i]);
+                        break;
+                    case "-w":
+                        warmup = Integer.parseInt(args[++i]);
+                        break;
+                    case "-t":
+                        timeoutMillis = Integer.parseInt(args[++i]);
+                        break;
+                    case "-m":
+                        mix.add(args[++i]);
+                        break;
+                    default:
+                        url = args[i];
+                        break;
+                }
+            }
+        }catch(RuntimeException e){
+            url = null;
+        }
+        if(url == null || connections <= 0 || rate <= 0 || seconds <= 0 || warmup < 0){
+            System.err.println("Usage: WebClient --load URL [-c connections] [-r requests/s] [-d seconds] " +
+                    "[-w warmup seconds] [-t timeout ms] [-m \"METHOD PATH [WEIGHT]\"]...");
+            System.exit(1);
+        }
+
+        URI uri = URI.create(url.startsWith("http://") || url.startsWith("https://") ? url : "http://" + url);
+        LoadGenerator generator = new LoadGenerator(uri, connections, rate, timeoutMillis);
+        if(mix.isEmpty()){
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            generator.addTarget("GET", path, 1);
+        }
+        for(String target : mix){
+            String[] parts = target.trim().split("\\s+");
+            generator.addTarget(parts[0], parts.length > 1 ? parts[1] : "/", parts.length > 2 ? Integer.parseInt(parts[2]) : 1);
+        }
+        generator.run(warmup, seconds);
+        generator.report();
+    }
+
+    /**
+     * Adds a kind of request to the mix.
+     *
+     * @param method GET, HEAD or POST
+     * @param path The path to request
+     * @param weight How often the request is sent compared to the others
+     */
+    void addTarget(String method, String path, int weight){
+        method = method.toUpperCase();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(base.resolve(path))
+                .timeout(timeout)
+                .header("User-Agent", "WebClient-load");
+        if(method.equals("POST")){
+            builder.header("Content-Type", "text/xml; charset=UTF-8")
+                    .POST(HttpRequest.BodyPublishers.ofString(POST_DATA, StandardCharsets.UTF_8));
+        }else{
+            builder.method(method, HttpRequest.BodyPublishers.noBody());
+        }
+        targets.add(new Target(method, path, weight, builder.build()));
+        totalWeight += weight;
+    }
+
+    /**
+     * Sends requests on schedule until the time is up, then waits for the
+     * responses that are still outstanding. The requests sent during the
+     * warmup are not counted, so the client and the server have been
+     * compiled by the JIT before anything is measured.
+     *
+     * @param warmup How long to send requests before measuring, in seconds
+     * @param seconds How long to send requests that are measured
+     */
+    void run(int warmup, int seconds){
+        System.out.println("Sending " + rate + " requests/s for " + seconds + " s after " + warmup +
+                " s of warmup over at most " + connections + " connections to " + base);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        for(long i = 0; ; i++){
+            long scheduled = start + i * interval;
+            if(scheduled >= end){
+                break;
+            }
+            long wait = scheduled - System.nanoTime();
+            if(wait > 0){
+                LockSupport.parkNanos(wait);
+            }
+            // Waiting for a connection delays the send, not the schedule
+            inFlight.acquireUninterruptibly();
+            send(pick(), scheduled);
+        }
+        try{
+            if(!inFlight.tryAcquire(connections, timeout.toMillis() + 1000, TimeUnit.MILLISECONDS)){
+                System.err.println("Some responses did not arrive in time");
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        // An overloaded server takes longer than scheduled, which lowers the throughput
+        measuredNanos = System.nanoTime() - measureFrom;
+    }
+
+    /**
+     * @return A kind of request from the mix, chosen by weight
+     */
+    private Target pick(){
+        if(targets.size() == 1){
+            return targets.get(0);
+        }
+        int r = ThreadLocalRandom.current().nextInt(totalWeight);
+        for(Target target : targets){
+            r -= target.weight;
+            if(r < 0){
+                return target;
+            }
+        }
+        return targets.get(targets.size() - 1);
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     *
+     * @param target What to send
+     * @param scheduled When the request was scheduled to be sent, by System.nanoTime
+     */
+    private void send(Target target, long scheduled){
+        client.sendAsync(target.request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    long latency = System.nanoTime() - scheduled;
+                    if(scheduled >= measureFrom){
+                        record(target, response, error, latency);
+                    }
+                    // Only after recording, so the report sees every response that has arrived
+                    inFlight.release();
+                });
+    }
+
+    private void record(Target target, HttpResponse<Void> response, Throwable error, long latency){
+        if(error != null){
+            errors.computeIfAbsent(errorName(error), name -> new LongAdder()).increment();
+            return;
+        }
+        completed.increment();
+        statuses.computeIfAbsent(response.statusCode(), code -> new LongAdder()).increment();
+        latencies.record(latency);
+        target.latencies.record(latency);
+    }
+
+    /**
+     * @param error Why a request failed
+     * @return A short name for the kind of failure
+     */
+    private static String errorName(Throwable error){
+        Throwable cause = error.getCause() != null ? error.getCause() : error;
+        if(cause instanceof HttpTimeoutException){
+            return "timeout";
+        }
+        if(cause instanceof ConnectException){
+            return "connect";
+        }
+        if(cause instanceof IOException){
+            return "read/write";
+        }
+        return cause.getClass().getSimpleName();
+    }
+
+    /**
+     * Prints the throughput, the errors, the statuses and the latencies.
+     */
+    void report(){
+        long failed = 0;
+        for(LongAdder count : errors.values()){
+            failed += count.sum();
+        }
+        System.out.printf("Completed:  %d requests, %.1f requests/s%n", completed.sum(), completed.sum() / (measuredNanos / 1e9));
+        System.out.print("Errors:     " + failed);
+        for(Map.Entry<String, LongAdder> error : new TreeMap<>(errors).entrySet()){
+            System.out.print(", " + error.getKey() + " " + error.getValue().sum());
+        }
+        System.out.println();
+        System.out.print("Statuses:  ");
+        for(Map.Entry<Integer, LongAdder> status : new TreeMap<>(statuses).entrySet()){
+            System.out.print(" " + status.getKey() + " " + status.getValue().sum());
+        }
+        System.out.println();
+
+        System.out.println("Latency from the scheduled send time:");
+        Histogram.Snapshot all = latencies.snapshot();
+        for(int i = 0; i < PERCENTILES.length; i++){
+            System.out.printf("  %-7s %10.3f ms%n", PERCENTILE_NAMES[i], millis(all.quantile(PERCENTILES[i])));
+        }
+        if(targets.size() > 1){
+            System.out.println("By request:");
+            for(Target target : targets){
+                Histogram.Snapshot snapshot = target.latencies.snapshot();
+                System.out.printf("  %-5s %-30s %8d  50%% %8.3f ms  99%% %8.3f ms  max %8.3f ms%n",
+                        target.method, target.path, snapshot.getCount(), millis(snapshot.quantile(0.5)),
+                        millis(snapshot.quantile(0.99)), millis(snapshot.quantile(1.0)));
+            }
+        }
+    }
+
+    private static double millis(long nanos){
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,289 @@
+package WebClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A client for fetching many resources quickly. Connections are kept alive
+ * and reused for the next request to the same host, so a job fetching
+ * thousands of small files pays for connection setup only a few times.
+ * Every method returns at once with a future, and bodies are kept as raw
+ * bytes or written straight to a file or a channel, so binary files such as
+ * images arrive unchanged.
+ *
+ * At most a fixed number of requests per host are in flight at a time,
+ * the others wait in a queue for one of them to finish. This bounds the
+ * number of connections the pool keeps open to every host.
+ *
+ * The client is safe to share between threads, and sharing it is what makes
+ * the connections get reused.
+ */
+public class PooledWebClient {
+    private static final String USER_AGENT = "Mozilla/5.0 (Macintosh; " + System.getProperty("os.name") + ")";
+
+    private final HttpClient client;
+    private final Duration readTimeout;
+    private final int maxConnectionsPerHost;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a client with a connect timeout of 1 second, like WebClient, a
+     * read timeout of 5 seconds and at most 8 connections per host.
+     */
+    public PooledWebClient(){
+        this(1000, 5000, 8);
+    }
+
+    /**
+     * @param connectTimeoutMillis How long to wait for a connection to be established
+     * @param readTimeoutMillis How long to wait for the response once the request has been sent
+     * @param maxConnectionsPerHost The most requests in flight, and so connections, to one host
+     */
+    public PooledWebClient(int connectTimeoutMillis, int readTimeoutMillis, int maxConnectionsPerHost){
+        this.readTimeout = Duration.ofMillis(readTimeoutMillis);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    /**
+     * Builds a request with the read timeout of this client.
+     *
+     * @param method The method to send, such as GET, HEAD or POST
+     * @param url Where to send the request, http:// is added if no scheme is given
+     * @param data The body to send, or null to send none
+     * @return The request
+     */
+    public HttpRequest request(String method, String url, byte[] data){
+        if(!url.startsWith("http://") && !url.startsWith("https://")){
+            url = "http://" + url;
+        }
+        return HttpRequest.newBuilder(URI.create(url))
+                .timeout(readTimeout)
+                .header("User-Agent", USER_AGENT)
+                .method(method, data == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(data))
+                .build();
+    }
+
+    /**
+     * Sends a request once its host has a free connection.
+     *
+     * @param request The request to send
+     * @param handler What to do with the body
+     * @return The response, completed exceptionally if the request failed or timed out
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> handler){
+        Host host = hosts.computeIfAbsent(request.uri().getScheme() + "://" + request.uri().getAuthority(),
+                key -> new Host(maxConnectionsPerHost));
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        host.submit(() -> {
+            try{
+                client.sendAsync(request, handler).whenComplete((response, error) -> {
+                    // The permit is returned before anyone waiting for the result runs
+                    host.release();
+                    if(error != null){
+                        result.completeExceptionally(error);
+                    }else{
+                        result.complete(response);
+                    }
+                });
+            }catch(RuntimeException e){
+                host.release();
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends a batch of requests at once. They are spread over the
+     * connections of their hosts, so a batch to one host is sent over at
+     * most the maximum number of connections per host.
+     *
+     * @param requests The requests to send
+     * @param handler What to do with the bodies
+     * @return The responses in the order of the requests, completed exceptionally if any request failed
+     */
+    public <T> CompletableFuture<List<HttpResponse<T>>> sendAll(List<HttpRequest> requests, HttpResponse.BodyHandler<T> handler){
+        List<CompletableFuture<HttpResponse<T>>> futures = new ArrayList<>(requests.size());
+        for(HttpRequest request : requests){
+            futures.add(send(request, handler));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<HttpResponse<T>> responses = new ArrayList<>(futures.size());
+            for(CompletableFuture<HttpResponse<T>> future : futures){
+                responses.add(future.join());
+            }
+            return responses;
+        });
+    }
+
+    /**
+     * @param url The resource to get
+     * @return The response with the body as it was sent
+     */
+    public CompletableFuture<HttpResponse<byte[]>> get(String url){
+        return send(request("GET", url, null), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * @param urls The resources to get
+     * @return The responses in the order of the urls, completed exceptionally if any request failed
+     */
+    public CompletableFuture<List<HttpResponse<byte[]>>> getAll(List<String> urls){
+        List<HttpRequest> requests = new ArrayList<>(urls.size());
+        for(String url : urls){
+            requests.add(request("GET", url, null));
+        }
+        return sendAll(requests, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Gets a resource without waiting for all of its body. The connection
+     * is only reused once the stream has been read to the end or closed,
+     * but it stops counting against the limit of its host as soon as the
+     * headers have arrived, so streams should be read promptly.
+     *
+     * @param url The resource to get
+     * @return The response with a stream of the body
+     */
+    public CompletableFuture<HttpResponse<InputStream>> stream(String url){
+        return send(request("GET", url, null), HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    /**
+     * Writes a resource to a file as it arrives.
+     *
+     * @param url The resource to get
+     * @param file The file to write, it is replaced if it exists
+     * @return The response with the path of the file
+     */
+    public CompletableFuture<HttpResponse<Path>> download(String url, Path file){
+        return send(request("GET", url, null), HttpResponse.BodyHandlers.ofFile(file));
+    }
+
+    /**
+     * Writes a resource to a channel as it arrives. The channel is not closed.
+     *
+     * @param url The resource to get
+     * @param channel Where to write the body, such as a FileChannel or a SocketChannel in blocking mode
+     * @return The response with the number of bytes written
+     */
+    public CompletableFuture<HttpResponse<Long>> download(String url, WritableByteChannel channel){
+        return send(request("GET", url, null), info -> new ChannelSubscriber(channel));
+    }
+
+    /**
+     * The requests to one host. A request is only sent when it can take a
+     * permit, otherwise it waits in the queue until a request finishes.
+     */
+    private static final class Host {
+        private final Semaphore permits;
+        private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+        private Host(int maxConnections){
+            this.permits = new Semaphore(maxConnections);
+        }
+
+        private void submit(Runnable send){
+            waiting.add(send);
+            drain();
+        }
+
+        private void release(){
+            permits.release();
+            drain();
+        }
+
+        /**
+         * Sends waiting requests while there are free permits. Whoever
+         * queues a request or returns a permit last sees the other, so no
+         * request is left waiting with a permit free.
+         */
+        private void drain(){
+            while(!waiting.isEmpty() && permits.tryAcquire()){
+                Runnable send = waiting.poll();
+                if(send == null){
+                    // Another thread took it first
+                    permits.release();
+                    continue;
+                }
+                send.run();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffers of a body to a channel as they arrive. Only one
+     * list of buffers is requested at a time, so a slow channel slows down
+     * reading from the connection instead of piling up buffers in memory.
+     */
+    private static final class ChannelSubscriber implements HttpResponse.BodySubscriber<Long> {
+        private final WritableByteChannel channel;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private long written = 0;
+
+        private ChannelSubscriber(WritableByteChannel channel){
+            this.channel = channel;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription){
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers){
+            try{
+                for(ByteBuffer buffer : buffers){
+                    while(buffer.hasRemaining()){
+                        written += channel.write(buffer);
+                    }
+                }
+                subscription.request(1);
+            }catch(IOException e){
+                subscription.cancel();
+                result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error){
+            result.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete(){
+            result.complete(written);
+        }
+
+        @Override
+        public CompletionStage<Long> getBody(){
+            return result;
+        }
+    }
+}
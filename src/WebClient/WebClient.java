@@ -6,12 +6,17 @@ import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 public class WebClient {
 
     public static void main(String args[]){
+        if(args.length > 0 && args[0].equals("--load")){
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         String urlString = args[0];
         WebClient w = new WebClient();
         String[] requestMethods = {"GET", "HEAD", "POST"};
@@ -20,7 +25,7 @@ public class WebClient {
             try {
                 String r;
                 if(requestMethods[i] == "POST"){
-                    r = w.getWebContent(requestMethods[i], urlString, "<name attribute=\"value\">martin</name>\r\n");
+                    r = w.getWebContent(requestMethods[i], urlString, LoadGenerator.POST_DATA);
                 }else{
                     r = w.getWebContent(requestMethods[i], urlString);
                 }
@@ -67,7 +72,8 @@ public class WebClient {
      * @param data If the request is POST, this should be the data to send
      *             to the server.
      * @param charset What charset is used on the data.
-     * @param timeoutMilli How long to wait for a respons from the server (in milli sec)
+     * @param timeoutMilli How long to wait for a respons from the server (in milli sec),
+     *                     both to connect and for every read
      * @return A string with the server response, or null of something went wrong.
      * @throws IOException
      */
@@ -97,11 +103,9 @@ public class WebClient {
                 }
                 break;
         }
-        String response = getResponse(conn, charset);
-        if(conn != null){
-            conn.disconnect();
-        }
-        return response;
+        // The stream is read to the end and closed instead of disconnecting,
+        // so HttpURLConnection can reuse the connection for the next request
+        return getResponse(conn, charset);
     }
 
     /**
@@ -133,6 +137,7 @@ public class WebClient {
         conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Macintosh; "+System.getProperty("os.name")+")");
         conn.setRequestProperty("Accept", "text/html");
         conn.setConnectTimeout(timeoutMilli);
+        conn.setReadTimeout(timeoutMilli);
     }
 
     /**
@@ -149,6 +154,7 @@ public class WebClient {
         conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Macintosh; "+System.getProperty("os.name")+")");
         conn.setRequestProperty("Accept","text/html");
         conn.setConnectTimeout(timeoutMilli);
+        conn.setReadTimeout(timeoutMilli);
     }
 
     /**
@@ -170,6 +176,7 @@ public class WebClient {
         conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Macintosh; "+System.getProperty("os.name")+")");
         conn.setRequestProperty("Accept", "text/xml");
         conn.setConnectTimeout(timeoutMilli);
+        conn.setReadTimeout(timeoutMilli);
     }
 
     /**
@@ -196,32 +203,17 @@ public class WebClient {
             getHeaderFields(conn);
             return null;
         }else {
-
-            BufferedReader br = null;
-
-            try {
-                br = new BufferedReader(new InputStreamReader(is, charset));
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
-
-            String line;
-            StringBuffer sb = new StringBuffer();
-
             System.out.println("----------------- HEADERS -----------------");
             getHeaderFields(conn);
-            try {
-                while ((line = br.readLine()) != null) {
-                    sb.append(line).append("\r\n");
-                }
-                if (br != null) {
-                    br.close();
-                }
 
+            // The body is read as bytes and decoded once, so its line endings are kept
+            // as they were sent. Use PooledWebClient for binary files such as images.
+            try (InputStream body = is) {
+                return new String(body.readAllBytes(), charset);
             } catch (IOException e) {
                 e.printStackTrace();
+                return null;
             }
-            return sb.toString();
         }
     }
 
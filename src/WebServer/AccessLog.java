@@ -0,0 +1,387 @@
+package WebServer;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log in the Common or Combined Log Format, written by a thread of
+ * its own. Request threads only copy the few bytes an entry needs into a
+ * slot of a ring buffer, without taking a lock or allocating anything. The
+ * writer formats whatever has piled up and writes it to a FileChannel in
+ * one go, so a burst of requests costs a few system calls instead of one
+ * per request, and a slow disk never holds up a response.
+ *
+ * The ring is a bounded queue as described by Dmitry Vyukov. Every slot has
+ * a sequence number telling if it is free for the producer that claims its
+ * position or holds an entry for the writer. Producers claim positions with
+ * a compare-and-set, the single writer needs no atomic operations at all.
+ */
+class AccessLog implements Runnable {
+    // The most bytes kept of each part of an entry, longer values are cut off
+    private static final int MAX_ADDRESS = 64;
+    private static final int MAX_REQUEST_LINE = 512;
+    private static final int MAX_HEADER = 256;
+    private static final int ENTRY_SIZE = MAX_ADDRESS + MAX_REQUEST_LINE + 2 * MAX_HEADER;
+    // Every byte may be escaped to four, then there are the date, the status and the size
+    private static final int MAX_LINE = 4 * ENTRY_SIZE + 128;
+    private static final int BATCH_SIZE = 64 * 1024;
+    // How long the writer sleeps when there is nothing to write
+    private static final long IDLE_NANOS = 10_000_000;
+    // How long a blocked request thread waits before it looks for room again
+    private static final long BLOCKED_NANOS = 50_000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private static final DateTimeFormatter DATE_FORMATTER =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter ROTATED_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss", Locale.US).withZone(ZoneId.systemDefault());
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NO_USER = " - - [".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * A slot of the ring. It is only touched by the producer that claimed it
+     * until the entry is published, and only by the writer after that.
+     */
+    private static final class Entry {
+        private final byte[] data = new byte[ENTRY_SIZE];
+        private long time;
+        private int status;
+        private long bytes;
+        private int addressLength;
+        private int requestLength;
+        // -1 if the header was not sent
+        private int refererLength;
+        private int userAgentLength;
+    }
+
+    private final Entry[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // The next position the writer reads, only used by the writer
+    private long head = 0;
+
+    private final boolean combined;
+    private final boolean block;
+    // Null when logging to standard output, which is never rotated
+    private final Path path;
+    private final long rotateBytes;
+    private final long rotateMillis;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private final byte[] digits = new byte[20];
+    private FileChannel channel;
+    private long fileSize;
+    private long openedAt;
+    // The date of the last entry, reused while entries are from the same second
+    private long dateSecond = -1;
+    private byte[] date;
+
+    /**
+     * Opens the log and starts the writer thread.
+     *
+     * @param config The settings of the log
+     * @throws IOException If the log file could not be opened
+     */
+    AccessLog(ServerConfig config) throws IOException{
+        int capacity = Integer.highestOneBit(Math.max(2, config.getAccessLogBuffer() - 1)) << 1;
+        entries = new Entry[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++){
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        combined = config.getAccessLogFormat() == ServerConfig.AccessLogFormat.COMBINED;
+        block = config.getAccessLogPolicy() == ServerConfig.AccessLogPolicy.BLOCK;
+        rotateBytes = config.getAccessLogRotateBytes();
+        rotateMillis = config.getAccessLogRotateMinutes() * 60_000L;
+
+        if(config.getAccessLog().equals("-")){
+            path = null;
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        }else{
+            path = Paths.get(config.getAccessLog());
+            open();
+        }
+
+        writer = new Thread(this, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Hands an entry to the writer. With the drop policy this never waits,
+     * if the ring is full the entry is dropped and counted instead.
+     *
+     * @param address The address of the client, as text
+     * @param request The request that was answered
+     * @param status The status it was answered with
+     * @param bytes The number of bytes of the body that were sent
+     * @param time When the request was received, in milliseconds since the epoch
+     */
+    void log(byte[] address, Request request, Status status, long bytes, long time){
+        while(true){
+            long position = tail.get();
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if(available == 0){
+                if(tail.compareAndSet(position, position + 1)){
+                    fill(entries[index], address, request, status, bytes, time);
+                    sequences.set(index, position + 1);
+                    if((position & (mask >> 1)) == 0){
+                        // Wake the writer every half ring, so a burst does not fill it
+                        LockSupport.unpark(writer);
+                    }
+                    return;
+                }
+            }else if(available < 0){
+                // The writer has not caught up with the ring yet
+                LockSupport.unpark(writer);
+                if(!block || closed){
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.parkNanos(BLOCKED_NANOS);
+            }
+            // Otherwise another thread claimed the position first, so try the next one
+        }
+    }
+
+    /**
+     * Copies what an entry needs out of the request, which is reused as soon
+     * as the response has been sent.
+     */
+    private void fill(Entry entry, byte[] address, Request request, Status status, long bytes, long time){
+        entry.time = time;
+        entry.status = status.getCode();
+        entry.bytes = bytes;
+        entry.addressLength = Math.min(address.length, MAX_ADDRESS);
+        System.arraycopy(address, 0, entry.data, 0, entry.addressLength);
+        int offset = entry.addressLength;
+        entry.requestLength = request.copyRequestLine(entry.data, offset, MAX_REQUEST_LINE);
+        offset += entry.requestLength;
+        if(combined){
+            entry.refererLength = request.copyHeader(Request.REFERER, entry.data, offset, MAX_HEADER);
+            offset += Math.max(0, entry.refererLength);
+            entry.userAgentLength = request.copyHeader(Request.USER_AGENT, entry.data, offset, MAX_HEADER);
+        }
+    }
+
+    /**
+     * Writes entries until the log is closed. Whatever has been published
+     * is formatted into the batch buffer, which is written once the ring is
+     * empty or the buffer is full.
+     */
+    @Override
+    public void run(){
+        while(true){
+            // Read before draining, so entries published before closing are still written
+            boolean closing = closed;
+            if(drain() == 0){
+                flush();
+                if(closing){
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        if(path != null){
+            try{
+                channel.close();
+            }catch(IOException e){
+                // Nothing more can be done about it
+            }
+        }
+    }
+
+    /**
+     * Formats the published entries and frees their slots.
+     *
+     * @return The number of entries formatted
+     */
+    private int drain(){
+        int count = 0;
+        while(true){
+            int index = (int) head & mask;
+            if(sequences.get(index) != head + 1){
+                return count;
+            }
+            if(batch.remaining() < MAX_LINE){
+                flush();
+            }
+            format(entries[index]);
+            sequences.set(index, head + mask + 1);
+            head++;
+            count++;
+        }
+    }
+
+    /**
+     * Writes one entry as a line, such as
+     * 127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /index.html HTTP/1.1" 200 2326 "-" "curl/8.0"
+     */
+    private void format(Entry entry){
+        byte[] data = entry.data;
+        batch.put(data, 0, entry.addressLength);
+        batch.put(NO_USER);
+        batch.put(date(entry.time));
+        batch.put((byte) ']').put((byte) ' ');
+        quoted(data, entry.addressLength, entry.requestLength);
+        batch.put((byte) ' ');
+        number(entry.status);
+        batch.put((byte) ' ');
+        if(entry.bytes > 0){
+            number(entry.bytes);
+        }else{
+            batch.put((byte) '-');
+        }
+        if(combined){
+            int offset = entry.addressLength + entry.requestLength;
+            batch.put((byte) ' ');
+            quoted(data, offset, entry.refererLength);
+            offset += Math.max(0, entry.refererLength);
+            batch.put((byte) ' ');
+            quoted(data, offset, entry.userAgentLength);
+        }
+        batch.put((byte) '\n');
+    }
+
+    /**
+     * Writes a value in quotes. Quotes, backslashes and bytes that are not
+     * printable are escaped the way Apache does it, so a client cannot
+     * forge lines in the log.
+     *
+     * @param length The length of the value, or -1 to write "-"
+     */
+    private void quoted(byte[] data, int offset, int length){
+        batch.put((byte) '"');
+        if(length < 0){
+            batch.put((byte) '-');
+        }
+        for(int i = offset; i < offset + length; i++){
+            byte b = data[i];
+            if(b == '"' || b == '\\'){
+                batch.put((byte) '\\').put(b);
+            }else if(b < 0x20 || b >= 0x7f){
+                batch.put((byte) '\\').put((byte) 'x').put(HEX[(b >> 4) & 0xf]).put(HEX[b & 0xf]);
+            }else{
+                batch.put(b);
+            }
+        }
+        batch.put((byte) '"');
+    }
+
+    private void number(long value){
+        int start = digits.length;
+        do{
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        }while(value > 0);
+        batch.put(digits, start, digits.length - start);
+    }
+
+    /**
+     * @param millis A time in milliseconds since the epoch
+     * @return The time in the format of the log, formatted once per second
+     */
+    private byte[] date(long millis){
+        long second = millis / 1000;
+        if(second != dateSecond){
+            dateSecond = second;
+            date = DATE_FORMATTER.format(Instant.ofEpochMilli(millis)).getBytes(StandardCharsets.US_ASCII);
+        }
+        return date;
+    }
+
+    /**
+     * Writes the batch buffer to the log, rotating the log first if it is
+     * due. If writing fails the entries are lost, but the server goes on.
+     */
+    private void flush(){
+        if(batch.position() == 0){
+            return;
+        }
+        batch.flip();
+        try{
+            if(path != null && (fileSize >= rotateBytes ||
+                    (rotateMillis > 0 && System.currentTimeMillis() - openedAt >= rotateMillis))){
+                rotate();
+            }
+            while(batch.hasRemaining()){
+                fileSize += channel.write(batch);
+            }
+        }catch(IOException e){
+            System.err.println("Could not write the access log: " + e.getMessage());
+        }
+        batch.clear();
+    }
+
+    private void open() throws IOException{
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        openedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Renames the log after the time it was rotated, such as
+     * access.log.20240131-235959, and starts a new one.
+     *
+     * @throws IOException
+     */
+    private void rotate() throws IOException{
+        channel.close();
+        String base = path.getFileName() + "." + ROTATED_FORMATTER.format(Instant.now());
+        Path rotated = path.resolveSibling(base);
+        for(int i = 1; Files.exists(rotated); i++){
+            rotated = path.resolveSibling(base + "." + i);
+        }
+        try{
+            Files.move(path, rotated);
+        }finally{
+            // If the old log could not be renamed, go on appending to it
+            open();
+        }
+    }
+
+    /**
+     * @return The number of entries dropped because the ring was full
+     */
+    long getDropped(){
+        return dropped.sum();
+    }
+
+    /**
+     * Writes what is left in the ring and closes the log. Entries logged
+     * after this are not written.
+     */
+    void close(){
+        closed = true;
+        LockSupport.unpark(writer);
+        try{
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
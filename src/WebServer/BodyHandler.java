@@ -0,0 +1,67 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Receives the bodies of requests while they are being read, so a body
+ * never has to be held in memory as a whole. A handler is shared by all
+ * connections, the sinks it opens belong to a single request. The handler
+ * of a server is given to its constructor, the handler answering the
+ * request reads the body back from the sink.
+ */
+interface BodyHandler {
+
+    /**
+     * Where the body of one request is written to.
+     */
+    interface Sink {
+        /**
+         * Takes the next bytes of the body. All of them have to be consumed.
+         *
+         * @param data The bytes, from its position to its limit
+         * @throws IOException
+         */
+        void write(ByteBuffer data) throws IOException;
+
+        /**
+         * Called once the whole body has been received.
+         *
+         * @throws IOException
+         */
+        void complete() throws IOException;
+
+        /**
+         * @return The number of bytes received so far
+         */
+        long size();
+
+        /**
+         * Opens the body that was received, to be read from its first byte.
+         * Only called after complete and before release. Every call opens a
+         * channel of its own, which the caller closes.
+         *
+         * @return The body
+         * @throws IOException
+         */
+        ReadableByteChannel open() throws IOException;
+
+        /**
+         * Releases what the sink holds. Called when the request has been
+         * answered or the connection is closed, whether or not the body was
+         * received completely.
+         */
+        void release();
+    }
+
+    /**
+     * Called when the headers of a request with a body have been parsed.
+     *
+     * @param request The request the body belongs to
+     * @return The sink to write the body to, or null if the body should be discarded
+     * @throws IOException
+     */
+    Sink open(Request request) throws IOException;
+}
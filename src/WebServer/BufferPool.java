@@ -0,0 +1,58 @@
+package WebServer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers of one size, shared by all connections. Direct buffers are
+ * slow to allocate and are only freed by the garbage collector, so they are
+ * kept for reuse instead, up to a limit. A connection only holds a buffer
+ * while it has bytes in it, so idle connections hold none.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize The size of every buffer
+     * @param maxPooled The most free buffers kept for reuse
+     */
+    BufferPool(int bufferSize, int maxPooled){
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return An empty buffer, ready to be written to
+     */
+    ByteBuffer acquire(){
+        ByteBuffer buffer = free.poll();
+        if(buffer == null){
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. It must not be used afterwards.
+     *
+     * @param buffer A buffer from acquire
+     */
+    void release(ByteBuffer buffer){
+        if(pooled.incrementAndGet() > maxPooled){
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        free.add(buffer);
+    }
+
+    int getBufferSize(){
+        return bufferSize;
+    }
+}
@@ -0,0 +1,97 @@
+package WebServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes asked for with the Range header, with both ends included
+ * as in "bytes=0-499".
+ */
+final class ByteRange {
+    // Asking for many small ranges is a cheap way to make the server do a lot
+    // of work, so requests with more ranges than this get the whole file instead.
+    static final int MAX_RANGES = 16;
+
+    private final long start;
+    private final long end;
+
+    private ByteRange(long start, long end){
+        this.start = start;
+        this.end = end;
+    }
+
+    long getStart(){
+        return start;
+    }
+
+    long getEnd(){
+        return end;
+    }
+
+    long length(){
+        return end - start + 1;
+    }
+
+    /**
+     * @param size The size of the whole file
+     * @return The value of the Content-Range header for this range
+     */
+    String contentRange(long size){
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Parses a Range header against a file of the given size. Ranges that
+     * reach past the end of the file are shortened to fit it.
+     *
+     * @param header The value of the Range header
+     * @param size The size of the file
+     * @return The satisfiable ranges, an empty list if none of the ranges
+     *         can be satisfied, or null if the header should be ignored
+     *         because it is malformed, uses another unit or has too many ranges
+     */
+    static List<ByteRange> parse(String header, long size){
+        int equals = header.indexOf('=');
+        if(equals < 0 || !header.substring(0, equals).trim().equalsIgnoreCase("bytes")){
+            return null;
+        }
+        String[] specs = header.substring(equals + 1).split(",");
+        if(specs.length > MAX_RANGES){
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for(String spec : specs){
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash < 0){
+                return null;
+            }
+            try{
+                if(dash == 0){
+                    // A suffix range, the last n bytes of the file
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if(suffix < 0){
+                        return null;
+                    }
+                    if(suffix > 0 && size > 0){
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                }else{
+                    long first = Long.parseLong(spec.substring(0, dash));
+                    String last = spec.substring(dash + 1);
+                    long end = last.isEmpty() ? size - 1 : Long.parseLong(last);
+                    if(first < 0 || (!last.isEmpty() && end < first)){
+                        return null;
+                    }
+                    if(first < size){
+                        ranges.add(new ByteRange(first, Math.min(end, size - 1)));
+                    }
+                }
+            }catch(NumberFormatException e){
+                return null;
+            }
+        }
+        return ranges;
+    }
+}
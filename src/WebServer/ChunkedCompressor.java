@@ -0,0 +1,171 @@
+package WebServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a file while it is sent, for files too large to be compressed
+ * in memory. The compressed length is not known up front, so the output is
+ * framed with the chunked transfer coding. The file is read and compressed
+ * one piece at a time, which lets a non-blocking connection pull the next
+ * chunk only when the socket can take it.
+ */
+class ChunkedCompressor implements HttpResponse.BodySource {
+    private static final int INPUT_SIZE = 16 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Path path;
+    private final long length;
+    private final boolean gzip;
+    private final int level;
+
+    private FileChannel file;
+    private Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer input;
+    private byte[] output;
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(INPUT_SIZE);
+    private long position = 0;
+    private boolean started = false;
+    private boolean finished = false;
+
+    /**
+     * @param path The file to compress
+     * @param length The number of bytes to read from the file
+     * @param encoding Either gzip or deflate
+     * @param level The compression level, from 1 to 9
+     */
+    ChunkedCompressor(Path path, long length, String encoding, int level){
+        this.path = path;
+        this.length = length;
+        this.gzip = ContentEncoding.GZIP.equals(encoding);
+        this.level = level;
+    }
+
+    /**
+     * Produces the next chunk of compressed output. The file and the deflater
+     * are only opened on the first call, so a response to HEAD costs nothing.
+     *
+     * @return The next chunk, framed for the chunked transfer coding, or null when everything has been sent
+     * @throws IOException
+     */
+    @Override
+    public ByteBuffer next() throws IOException{
+        if(finished){
+            return null;
+        }
+        chunk.reset();
+        if(!started){
+            start();
+        }
+
+        // Keep reading until the deflater produces something, it buffers a lot internally
+        while(chunk.size() == 0 && position < length){
+            input.clear();
+            if(input.remaining() > length - position){
+                input.limit((int) (length - position));
+            }
+            int read = file.read(input, position);
+            if(read == -1){
+                throw new IOException("File ended before its announced length");
+            }
+            position += read;
+            crc.update(input.array(), 0, read);
+            deflater.setInput(input.array(), 0, read);
+            while(!deflater.needsInput()){
+                drain();
+            }
+        }
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(chunk.size() + 32);
+        if(position >= length){
+            deflater.finish();
+            while(!deflater.finished()){
+                drain();
+            }
+            if(gzip){
+                writeTrailer();
+            }
+            finished = true;
+        }
+        if(chunk.size() > 0){
+            framed.write(Integer.toHexString(chunk.size()).getBytes());
+            framed.write(CRLF);
+            chunk.writeTo(framed);
+            framed.write(CRLF);
+        }
+        if(finished){
+            framed.write(LAST_CHUNK);
+            close();
+        }
+        return ByteBuffer.wrap(framed.toByteArray());
+    }
+
+    /**
+     * Opens the file and the deflater and writes the gzip header.
+     *
+     * @throws IOException
+     */
+    private void start() throws IOException{
+        started = true;
+        file = FileChannel.open(path, StandardOpenOption.READ);
+        // gzip wraps raw deflate data in its own header and trailer
+        deflater = new Deflater(level, gzip);
+        input = ByteBuffer.allocate(HttpResponse.copyBufferSize(Math.min(length, INPUT_SIZE)));
+        output = new byte[input.capacity()];
+        if(gzip){
+            chunk.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        }
+    }
+
+    /**
+     * Moves what the deflater has produced into the current chunk.
+     */
+    private void drain(){
+        int produced = deflater.deflate(output);
+        chunk.write(output, 0, produced);
+    }
+
+    /**
+     * Writes the gzip trailer, the CRC32 and the length of the uncompressed
+     * data, both in little endian order.
+     */
+    private void writeTrailer(){
+        long checksum = crc.getValue();
+        long size = length & 0xffffffffL;
+        for(int i = 0; i < 4; i++){
+            chunk.write((int) (checksum >> (8 * i)) & 0xff);
+        }
+        for(int i = 0; i < 4; i++){
+            chunk.write((int) (size >> (8 * i)) & 0xff);
+        }
+    }
+
+    /**
+     * Releases the file and the native memory of the deflater.
+     */
+    @Override
+    public void close(){
+        if(deflater != null){
+            deflater.end();
+            deflater = null;
+        }
+        if(file != null){
+            try{
+                file.close();
+            }catch(IOException e){
+                // Nothing more can be done about it
+            }
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package WebServer;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits what a single client address may take of the server: how many
+ * connections it may have open at once and how many requests it may send
+ * per second. A client over either limit is answered with 429, so a few
+ * abusive clients can not take the threads, connections and bandwidth the
+ * others need.
+ *
+ * The clients are kept in a ConcurrentHashMap, which locks a single bin on
+ * an update and never on a lookup, and every client is updated with
+ * compare-and-set alone, so connections of different clients never wait
+ * for each other. A client without open connections is forgotten once its
+ * bucket has filled up again, as it would start out full anyway.
+ */
+class ClientLimiter {
+    private static final long SWEEP_INTERVAL = 1000;
+    // A client that was forgotten, its next connection has to look it up again
+    private static final int EXPIRED = -1;
+
+    private final int maxConnections;
+    private final int maxRequests;
+    private final long nanosPerRequest;
+    private final long burstNanos;
+    private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * The limits of one client address.
+     */
+    class Client {
+        private final AtomicInteger connections = new AtomicInteger();
+        // The bucket is kept as the time at which it is full again, so a single
+        // value is updated per request, and an idle client needs no refilling.
+        private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+        /**
+         * @return False if the client was forgotten and has to be looked up again
+         */
+        private boolean open(){
+            while(true){
+                int count = connections.get();
+                if(count == EXPIRED){
+                    return false;
+                }
+                if(connections.compareAndSet(count, count + 1)){
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Called once when a connection of the client is closed.
+         */
+        void close(){
+            connections.decrementAndGet();
+        }
+
+        /**
+         * Takes a token for a request from the bucket of the client.
+         *
+         * @return True if the client may send the request, false if it sends too many
+         */
+        boolean tryRequest(){
+            if(maxRequests <= 0){
+                return true;
+            }
+            long now = System.nanoTime();
+            while(true){
+                long full = fullAt.get();
+                long next = Math.max(full, now) + nanosPerRequest;
+                if(next - now > burstNanos){
+                    return false;
+                }
+                if(fullAt.compareAndSet(full, next)){
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return How many seconds the client has to wait for its next request, for Retry-After
+         */
+        long retryAfterSeconds(){
+            long wait = fullAt.get() + nanosPerRequest - burstNanos - System.nanoTime();
+            return Math.max(1, (wait + 999_999_999L) / 1_000_000_000L);
+        }
+
+        /**
+         * Forgets the client if it has no open connections and its bucket is full.
+         *
+         * @param now The current time by System.nanoTime
+         * @return True if the client has been forgotten
+         */
+        private boolean expire(long now){
+            return now - fullAt.get() >= 0 && connections.compareAndSet(0, EXPIRED);
+        }
+    }
+
+    /**
+     * @param config The settings with the limits per client address
+     */
+    ClientLimiter(ServerConfig config){
+        this.maxConnections = config.getMaxConnectionsPerClient();
+        this.maxRequests = config.getRateLimit();
+        this.nanosPerRequest = maxRequests > 0 ? 1_000_000_000L / maxRequests : 0;
+        // A client may send a whole burst at once, the bucket then refills at the rate
+        this.burstNanos = nanosPerRequest * Math.max(1, config.getRateLimitBurst());
+    }
+
+    /**
+     * @return True if clients are limited at all, false if every client may do anything
+     */
+    boolean isEnabled(){
+        return maxConnections > 0 || maxRequests > 0;
+    }
+
+    /**
+     * Counts a new connection of a client. The connection has to be closed
+     * with Client.close once it ends, if it was let in.
+     *
+     * @param address The address of the client
+     * @return The limits of the client, or null if it already has as many connections open as it may
+     */
+    Client open(InetAddress address){
+        sweep();
+        while(true){
+            Client client = clients.computeIfAbsent(address, a -> new Client());
+            if(client.open()){
+                if(maxConnections > 0 && client.connections.get() > maxConnections){
+                    client.close();
+                    return null;
+                }
+                return client;
+            }
+            // Forgotten in the meantime, it is replaced by a new one
+            clients.remove(address, client);
+        }
+    }
+
+    /**
+     * Forgets the clients that have no connections open and could send a
+     * whole burst again. Done at most once per second, by whichever thread
+     * gets there first, as it visits every client.
+     */
+    private void sweep(){
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if(now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)){
+            return;
+        }
+        long nanos = System.nanoTime();
+        clients.entrySet().removeIf(entry -> entry.getValue().expire(nanos));
+    }
+}
@@ -0,0 +1,178 @@
+package WebServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps compressed variants of cached files, so a file is compressed once
+ * per version and encoding instead of once per request. Bounded by the total
+ * number of compressed bytes, evicting the least recently used variants first.
+ */
+class CompressionCache {
+    private final long maxBytes;
+    private final int level;
+
+    // Access ordered, so iteration starts with the least recently used variant
+    private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A compressed version of a file. If compressing did not make the file
+     * smaller, the content is null and the file is sent uncompressed.
+     */
+    private static class Variant {
+        private final String sourceETag;
+        private final ByteBuffer content;
+
+        private Variant(String sourceETag, ByteBuffer content){
+            this.sourceETag = sourceETag;
+            this.content = content;
+        }
+
+        long size(){
+            return content == null ? 0 : content.remaining();
+        }
+    }
+
+    /**
+     * @param config The settings deciding the size of the cache and the compression level
+     */
+    CompressionCache(ServerConfig config){
+        this.maxBytes = config.getCompressionCacheBytes();
+        this.level = config.getCompressionLevel();
+    }
+
+    /**
+     * @return The compression level used for new variants
+     */
+    int getLevel(){
+        return level;
+    }
+
+    /**
+     * Gets the compressed variant of a cached file, compressing it if the
+     * current version has not been compressed with the encoding yet.
+     *
+     * @param entry A file held in memory
+     * @param encoding The encoding to compress with
+     * @return A view of the compressed content, or null if compressing does not make the file smaller
+     */
+    ByteBuffer get(FileCache.Entry entry, String encoding){
+        String key = key(entry.getPath(), encoding);
+        Variant variant;
+        synchronized(this){
+            variant = variants.get(key);
+        }
+        if(variant != null && variant.sourceETag.equals(entry.getETag())){
+            hits.increment();
+            return variant.content == null ? null : variant.content.duplicate();
+        }
+
+        misses.increment();
+        ByteBuffer compressed = compress(entry.content(), encoding, level);
+        if(compressed.remaining() >= entry.getSize()){
+            compressed = null;
+        }
+        variant = new Variant(entry.getETag(), compressed);
+        synchronized(this){
+            Variant previous = variants.put(key, variant);
+            if(previous != null){
+                totalBytes -= previous.size();
+            }
+            totalBytes += variant.size();
+            evict();
+        }
+        return compressed == null ? null : compressed.duplicate();
+    }
+
+    /**
+     * Removes the least recently used variants until the cache fits its size.
+     * Must be called while holding the lock.
+     */
+    private void evict(){
+        Iterator<Map.Entry<String, Variant>> it = variants.entrySet().iterator();
+        while(totalBytes > maxBytes && it.hasNext()){
+            Variant eldest = it.next().getValue();
+            it.remove();
+            totalBytes -= eldest.size();
+            evictions.increment();
+        }
+    }
+
+    private static String key(Path path, String encoding){
+        return encoding + ":" + path;
+    }
+
+    /**
+     * Compresses bytes held in memory.
+     *
+     * @param content The bytes to compress, from position to limit
+     * @param encoding Either gzip or deflate
+     * @param level The compression level, from 1 to 9
+     * @return The compressed bytes
+     */
+    static ByteBuffer compress(ByteBuffer content, String encoding, final int level){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, content.remaining() / 4));
+        Deflater deflater = null;
+        try{
+            OutputStream out;
+            if(ContentEncoding.GZIP.equals(encoding)){
+                out = new GZIPOutputStream(bytes){
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }else{
+                deflater = new Deflater(level);
+                out = new DeflaterOutputStream(bytes, deflater);
+            }
+            byte[] chunk = new byte[HttpResponse.copyBufferSize(content.remaining())];
+            while(content.hasRemaining()){
+                int length = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+            out.close();
+        }catch(IOException e){
+            // Writing to memory never fails
+            throw new IllegalStateException(e);
+        }finally{
+            // A deflater given to DeflaterOutputStream is not released when the stream is closed
+            if(deflater != null){
+                deflater.end();
+            }
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    long getHits(){
+        return hits.sum();
+    }
+
+    long getMisses(){
+        return misses.sum();
+    }
+
+    long getEvictions(){
+        return evictions.sum();
+    }
+
+    synchronized long getTotalBytes(){
+        return totalBytes;
+    }
+}
@@ -0,0 +1,243 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands accepted connections over to an executor so that the accept loop
+ * never waits for a request to be processed. The number of connections that
+ * are handled (or waiting for a thread) at the same time is limited, and
+ * connections above the limit are answered with 503 straight away instead
+ * of being queued. A client address with as many connections open as it
+ * may have is answered with 429 the same way. A watchdog closes the
+ * connections whose client has stopped reading a response, since a
+ * blocking write never times out by itself.
+ */
+class ConnectionDispatcher {
+    private final ServerConfig config;
+    private final RequestProcessor processor;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final ClientLimiter limiter;
+    private final Thread watchdog;
+    private final Set<HttpRequest> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param config The configuration that decides the executor and the limits
+     * @param processor The processor building the responses
+     * @param limiter The limits per client address
+     */
+    ConnectionDispatcher(ServerConfig config, RequestProcessor processor, ClientLimiter limiter){
+        this.config = config;
+        this.processor = processor;
+        this.limiter = limiter;
+        this.permits = new Semaphore(config.getMaxConnections());
+        this.executor = createExecutor(config);
+        this.watchdog = new Thread(this::closeStalled, "http-write-timeouts");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * Starts handling a connection, or sheds it with a 503 if the server is
+     * full, or a 429 if its client has too many connections open.
+     *
+     * @param client The connection that was just accepted
+     */
+    void dispatch(Socket client){
+        if(!permits.tryAcquire()){
+            shed(client);
+            return;
+        }
+        ClientLimiter.Client limits = limiter.isEnabled() ? limiter.open(client.getInetAddress()) : null;
+        if(limiter.isEnabled() && limits == null){
+            permits.release();
+            reject(client, processor.tooManyRequests(1));
+            return;
+        }
+        Metrics metrics = processor.getMetrics();
+        long accepted = System.nanoTime();
+        HttpRequest connection = new HttpRequest(client, config, processor, limits);
+        connections.add(connection);
+        try{
+            executor.execute(() -> {
+                // How long the connection waited for a thread
+                metrics.record(Metrics.Stage.ACCEPT, System.nanoTime() - accepted);
+                metrics.connectionOpened();
+                try{
+                    connection.run();
+                }finally{
+                    metrics.connectionClosed();
+                    connections.remove(connection);
+                    if(limits != null){
+                        limits.close();
+                    }
+                    permits.release();
+                }
+            });
+        }catch(RejectedExecutionException e){
+            connections.remove(connection);
+            if(limits != null){
+                limits.close();
+            }
+            permits.release();
+            shed(client);
+        }
+    }
+
+    /**
+     * @return The number of connections currently being handled or waiting for a thread
+     */
+    int activeConnections(){
+        return config.getMaxConnections() - permits.availablePermits();
+    }
+
+    /**
+     * Waits for the connections to finish. Connections waiting for their
+     * next request are closed, the others are closed by the server once
+     * their current request has been answered, as the processor is draining.
+     *
+     * @param deadline Until when to wait, by System.currentTimeMillis
+     * @return True if every connection has finished
+     */
+    boolean drain(long deadline){
+        while(true){
+            for(HttpRequest connection : connections){
+                connection.closeIfWaiting();
+            }
+            if(activeConnections() == 0){
+                return true;
+            }
+            if(System.currentTimeMillis() >= deadline){
+                return false;
+            }
+            try{
+                Thread.sleep(50);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Closes the connections whose writes have been blocked for longer than
+     * the write timeout, checking every second until the dispatcher is shut down.
+     */
+    private void closeStalled(){
+        while(true){
+            try{
+                Thread.sleep(1000);
+            }catch(InterruptedException e){
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for(HttpRequest connection : connections){
+                connection.closeIfStalled(now);
+            }
+        }
+    }
+
+    /**
+     * Stops the executor and closes the connections that are still open.
+     */
+    void shutdown(){
+        watchdog.interrupt();
+        executor.shutdown();
+        for(HttpRequest connection : connections){
+            connection.close();
+        }
+    }
+
+    /**
+     * Answers the connection with 503 and closes it.
+     *
+     * @param client The connection to turn away
+     */
+    private void shed(Socket client){
+        if(config.isDebug()){
+            System.out.println("Server is full, rejecting client: " + client.getInetAddress() + " " + client.getPort());
+        }
+        reject(client, processor.serviceUnavailable());
+    }
+
+    /**
+     * Answers the connection with a response and closes it.
+     *
+     * @param client The connection to turn away
+     * @param response Why it is turned away
+     */
+    private void reject(Socket client, HttpResponse response){
+        try{
+            new HttpRequest(client, config, processor, null).reject(response);
+        }catch(IOException e){
+            // The client is turned away anyway, nothing more to do
+        }
+    }
+
+    /**
+     * Creates the executor connections are handled on.
+     *
+     * @param config The configuration deciding the kind of executor
+     * @return A new executor
+     */
+    private static ExecutorService createExecutor(ServerConfig config){
+        if(config.getExecutorMode() == ServerConfig.ExecutorMode.VIRTUAL){
+            ExecutorService virtual = virtualThreadExecutor();
+            if(virtual != null){
+                return virtual;
+            }
+            System.err.println("Virtual threads are not supported by this runtime, using platform threads");
+        }
+        int threads = config.getWorkerThreads();
+        // The semaphore already limits the number of waiting connections, the
+        // bounded queue is only there so the executor itself can never grow without bound.
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.getMaxConnections())),
+                new WorkerThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor, which only exists on
+     * newer runtimes, so that the server still compiles and runs on older ones.
+     *
+     * @return A virtual thread per task executor, or null if it is not available
+     */
+    private static ExecutorService virtualThreadExecutor(){
+        try{
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }catch(ReflectiveOperationException | UnsupportedOperationException e){
+            return null;
+        }
+    }
+
+    /**
+     * Names the worker threads so they are easy to find in thread dumps.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "http-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package WebServer;
+
+/**
+ * Content negotiation for compressed responses. Decides which content types
+ * are worth compressing and which encoding a client accepts.
+ */
+final class ContentEncoding {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    // Below this size the compression headers eat most of what is saved
+    static final int MIN_COMPRESS_SIZE = 256;
+
+    private ContentEncoding(){
+    }
+
+    /**
+     * @param contentType The content type of a file
+     * @return True if files of the type usually shrink when compressed
+     */
+    static boolean isCompressible(String contentType){
+        if(contentType == null){
+            return false;
+        }
+        return contentType.startsWith("text/") ||
+                contentType.startsWith("application/javascript") ||
+                contentType.startsWith("application/json") ||
+                contentType.startsWith("application/xml") ||
+                contentType.startsWith("application/manifest+json") ||
+                contentType.startsWith("application/wasm") ||
+                contentType.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Picks the encoding to send, preferring gzip over deflate.
+     *
+     * @param acceptEncoding The value of the Accept-Encoding header, or null
+     * @return The encoding to use, or null if the response should not be compressed
+     */
+    static String negotiate(String acceptEncoding){
+        if(acceptEncoding == null){
+            return null;
+        }
+        if(quality(acceptEncoding, GZIP) > 0){
+            return GZIP;
+        }
+        if(quality(acceptEncoding, DEFLATE) > 0){
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the quality a client gives an encoding. An encoding that is not
+     * listed gets the quality of "*", or 0 if there is no "*" either.
+     *
+     * @param acceptEncoding The value of the Accept-Encoding header
+     * @param encoding The encoding to look for
+     * @return The quality, between 0 and 1
+     */
+    private static double quality(String acceptEncoding, String encoding){
+        double wildcard = 0;
+        for(String item : acceptEncoding.split(",")){
+            String[] params = item.split(";");
+            String name = params[0].trim();
+            double q = 1;
+            for(int i = 1; i < params.length; i++){
+                String param = params[i].trim();
+                if(param.startsWith("q=")){
+                    try{
+                        q = Double.parseDouble(param.substring(2).trim());
+                    }catch(NumberFormatException e){
+                        q = 0;
+                    }
+                }
+            }
+            if(name.equalsIgnoreCase(encoding)){
+                return q;
+            }
+            if(name.equals("*")){
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Makes the entity tag of a compressed variant, which has to differ from
+     * the tag of the uncompressed file.
+     *
+     * @param etag The entity tag of the uncompressed file, including its quotes
+     * @param encoding The encoding of the variant
+     * @return The entity tag of the variant
+     */
+    static String variantETag(String etag, String encoding){
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+}
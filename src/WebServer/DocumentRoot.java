@@ -0,0 +1,160 @@
+package WebServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A directory files are served from. Turns the path of a request into the
+ * file it asks for. The target of the request is made canonical once,
+ * before it is routed: it is stripped of its query, percent-decoded as
+ * UTF-8, and its . and .. segments are resolved. A path whose .. segments
+ * would climb out of the root is rejected, whichever way it is spelled, so
+ * neither a route nor a file outside the directory can be reached by
+ * spelling its path differently. Symbolic links inside the directory are
+ * followed.
+ */
+class DocumentRoot {
+    private final Path directory;
+    private final PathCache cache;
+
+    /**
+     * @param directory The directory to serve files from
+     * @param cache Where the files paths lead to are remembered, shared by all document roots
+     */
+    DocumentRoot(String directory, PathCache cache){
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        this.cache = cache;
+    }
+
+    /**
+     * @param path The canonical path below the directory, such as /images/a b.jpg
+     * @return The regular file to serve, the index.html of a directory, or
+     *         null if the path is outside the directory or leads to no file
+     */
+    Path resolve(String path){
+        Path file;
+        try{
+            file = directory.resolve(path.substring(1));
+        }catch(InvalidPathException e){
+            return null;
+        }
+        // Normalizing already keeps the path inside, this guards against the file system seeing it otherwise
+        if(!file.startsWith(directory)){
+            return null;
+        }
+        return cache.lookup(file);
+    }
+
+    /**
+     * Makes the target of a request canonical, so that every spelling of a
+     * path is routed and resolved the same way.
+     *
+     * @param target The target of the request, such as /images/../a%20b.jpg?size=2
+     * @return The decoded and normalized path without the query, such as
+     *         /a b.jpg, or null if it is malformed or climbs out of the root
+     */
+    static String canonicalize(String target){
+        int end = target.length();
+        for(int i = 0; i < end; i++){
+            char c = target.charAt(i);
+            if(c == '?' || c == '#'){
+                end = i;
+            }
+        }
+        if(end == 0 || target.charAt(0) != '/'){
+            return null;
+        }
+        String decoded = decode(target, end);
+        if(decoded == null){
+            return null;
+        }
+        String relative = normalize(decoded);
+        return relative == null ? null : "/" + relative;
+    }
+
+    /**
+     * Decodes the percent-encoded bytes of a path, and any bytes sent
+     * unencoded, as UTF-8. A + is kept as it is, it only means a space in a query.
+     *
+     * @param path The path
+     * @param end Where the path ends
+     * @return The decoded path, or null if it is malformed or contains a NUL
+     */
+    static String decode(String path, int end){
+        boolean plain = true;
+        for(int i = 0; i < end && plain; i++){
+            char c = path.charAt(i);
+            plain = c != '%' && c < 0x80;
+        }
+        if(plain){
+            return end == path.length() ? path : path.substring(0, end);
+        }
+        byte[] bytes = new byte[end];
+        int length = 0;
+        for(int i = 0; i < end; i++){
+            char c = path.charAt(i);
+            if(c == '%'){
+                if(i + 2 >= end){
+                    return null;
+                }
+                int high = Character.digit(path.charAt(i + 1), 16);
+                int low = Character.digit(path.charAt(i + 2), 16);
+                if(high < 0 || low < 0 || (high == 0 && low == 0)){
+                    return null;
+                }
+                bytes[length++] = (byte) (high << 4 | low);
+                i += 2;
+            }else{
+                // The request line was read as ISO-8859-1, so every char is one byte of it
+                bytes[length++] = (byte) c;
+            }
+        }
+        try{
+            return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes, 0, length)).toString();
+        }catch(CharacterCodingException e){
+            return null;
+        }
+    }
+
+    /**
+     * Resolves the . and .. segments of a decoded path and drops empty ones.
+     *
+     * @param path The decoded path
+     * @return The path relative to the document root, empty for the root
+     *         itself, or null if it climbs out of the root or contains a NUL
+     */
+    static String normalize(String path){
+        String[] segments = path.split("/");
+        // The indexes of the segments that are kept, used as a stack
+        int[] kept = new int[segments.length];
+        int count = 0;
+        for(int i = 0; i < segments.length; i++){
+            String segment = segments[i];
+            if(segment.isEmpty() || segment.equals(".")){
+                continue;
+            }
+            if(segment.equals("..")){
+                if(count == 0){
+                    return null;
+                }
+                count--;
+            }else if(segment.indexOf('\0') >= 0){
+                return null;
+            }else{
+                kept[count++] = i;
+            }
+        }
+        StringBuilder relative = new StringBuilder(path.length());
+        for(int i = 0; i < count; i++){
+            if(i > 0){
+                relative.append('/');
+            }
+            relative.append(segments[kept[i]]);
+        }
+        return relative.toString();
+    }
+}
@@ -0,0 +1,327 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the content of small, often requested files in memory, shared by all
+ * connections. The cache is bounded by the total number of bytes it holds and
+ * evicts the least recently used files first. A cached file is checked against
+ * the file system at most once per revalidation interval, and dropped if its
+ * size or modification time has changed. Files too large to be held in
+ * memory are still cached as an entry without their content, so they are
+ * checked on the same schedule instead of on every request. Such an entry
+ * counts what its metadata takes towards the size of the cache, so a crawl
+ * over many large files evicts them like any other entry.
+ */
+class FileCache {
+    // Roughly what an entry and its path, type and validators take on the heap
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final long revalidateMillis;
+    private final boolean direct;
+    private final MimeTypes mimeTypes;
+
+    // Access ordered, so iteration starts with the least recently used file
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * A version of a file. If the file is cached, the content is shared by
+     * every response that sends it, so it must only be read, and only through
+     * the views returned by content().
+     */
+    static class Entry {
+        private final Path path;
+        private final String contentType;
+        private final ByteBuffer content;
+        private final long lastModified;
+        private final long size;
+        private final String etag;
+        private final String lastModifiedDate;
+        private volatile long checkedAt;
+        // When the file was last found to have no gzip copy next to it, 0 if it was not looked for
+        private volatile long gzipMissingAt;
+
+        private Entry(Path path, String contentType, ByteBuffer content, long size, long lastModified, long checkedAt){
+            this.path = path;
+            this.contentType = contentType;
+            this.content = content;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.checkedAt = checkedAt;
+            // The validators only change with the file, so they are made once per version
+            this.etag = etag(size, lastModified);
+            this.lastModifiedDate = HttpDate.format(lastModified);
+        }
+
+        /**
+         * @return True if the content of the file is held in memory
+         */
+        boolean inMemory(){
+            return content != null;
+        }
+
+        /**
+         * @return The bytes the entry counts towards the size of the cache
+         */
+        private long weight(){
+            if(content != null){
+                return size;
+            }
+            return ENTRY_OVERHEAD + 2L * (path.toString().length() + contentType.length() +
+                    etag.length() + lastModifiedDate.length());
+        }
+
+        /**
+         * @return A view of the content, with its own position and limit
+         */
+        ByteBuffer content(){
+            return content.duplicate();
+        }
+
+        Path getPath(){
+            return path;
+        }
+
+        /**
+         * @return The content type the file is sent with
+         */
+        String getContentType(){
+            return contentType;
+        }
+
+        long getLastModified(){
+            return lastModified;
+        }
+
+        long getSize(){
+            return size;
+        }
+
+        String getETag(){
+            return etag;
+        }
+
+        /**
+         * @return The modification time as an HTTP date
+         */
+        String getLastModifiedDate(){
+            return lastModifiedDate;
+        }
+    }
+
+    /**
+     * Makes a strong entity tag for a version of a file from its size and
+     * modification time, so it can be made without reading the file.
+     *
+     * @param size The size of the file
+     * @param lastModified The modification time of the file in milliseconds
+     * @return The entity tag, including its quotes
+     */
+    static String etag(long size, long lastModified){
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    /**
+     * @param config The settings deciding the size of the cache and how often files are checked
+     * @param mimeTypes Where the content types of files are found
+     */
+    FileCache(ServerConfig config, MimeTypes mimeTypes){
+        this.mimeTypes = mimeTypes;
+        this.maxBytes = config.getCacheMaxBytes();
+        this.maxFileBytes = Math.min(config.getCacheMaxFileBytes(), config.getCacheMaxBytes());
+        this.revalidateMillis = config.getCacheRevalidateMillis();
+        this.direct = config.isCacheDirect();
+    }
+
+    /**
+     * Gets a file from the cache, loading it if it is not cached yet.
+     *
+     * @param path The file to get
+     * @return The file, without content if it is too large to be held in memory,
+     *         or null if the file does not exist or is not a regular file
+     */
+    Entry get(Path path){
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized(this){
+            entry = entries.get(path);
+        }
+
+        if(entry != null){
+            if(now - entry.checkedAt < revalidateMillis){
+                hits.increment();
+                return entry;
+            }
+            BasicFileAttributes attributes = attributes(path);
+            if(attributes != null && attributes.size() == entry.size &&
+                    attributes.lastModifiedTime().toMillis() == entry.lastModified){
+                entry.checkedAt = now;
+                hits.increment();
+                return entry;
+            }
+            invalidations.increment();
+            remove(path, entry);
+        }
+
+        misses.increment();
+        return load(path, now);
+    }
+
+    /**
+     * Gets the gzip compressed copy of a file, stored next to it with the
+     * extension .gz. Most files have none, so a missing copy is remembered
+     * on the entry of the file and only looked for again once the entry
+     * would be revalidated, without being counted as a miss.
+     *
+     * @param entry The file
+     * @return The compressed copy, or null if there is none
+     */
+    Entry getGzip(Entry entry){
+        long now = System.currentTimeMillis();
+        if(now - entry.gzipMissingAt < revalidateMillis){
+            return null;
+        }
+        Path gz = entry.path.resolveSibling(entry.path.getFileName() + ".gz");
+        Entry cached;
+        synchronized(this){
+            cached = entries.get(gz);
+        }
+        if(cached == null && attributes(gz) == null){
+            entry.gzipMissingAt = now;
+            return null;
+        }
+        return get(gz);
+    }
+
+    /**
+     * Reads a file into memory and adds it to the cache.
+     *
+     * @param path The file to read
+     * @param now The current time in milliseconds
+     * @return The new entry, without content if the file is too large to be
+     *         held in memory, or null if the file can not be read
+     */
+    private Entry load(Path path, long now){
+        BasicFileAttributes attributes = attributes(path);
+        if(attributes == null || !attributes.isRegularFile()){
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        // The type is found once per version of the file, not for every response
+        String contentType = mimeTypes.lookup(path.getFileName().toString());
+        if(attributes.size() > maxFileBytes){
+            return put(path, new Entry(path, contentType, null, attributes.size(), lastModified, now));
+        }
+
+        int size = (int) attributes.size();
+        ByteBuffer content = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            while(content.hasRemaining() && fc.read(content) != -1){
+                // Keep reading until the buffer is full or the file ends
+            }
+        }catch(IOException e){
+            return null;
+        }
+        content.flip();
+
+        return put(path, new Entry(path, contentType, content, content.remaining(), lastModified, now));
+    }
+
+    /**
+     * Adds a file to the cache, replacing the version that was there.
+     *
+     * @param path The file
+     * @param entry The version of the file that was just loaded
+     * @return The entry
+     */
+    private synchronized Entry put(Path path, Entry entry){
+        Entry previous = entries.put(path, entry);
+        if(previous != null){
+            totalBytes -= previous.weight();
+        }
+        totalBytes += entry.weight();
+        evict();
+        return entry;
+    }
+
+    /**
+     * Removes the least recently used files until the cache fits its size.
+     * Must be called while holding the lock.
+     */
+    private void evict(){
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while(totalBytes > maxBytes && it.hasNext()){
+            Entry eldest = it.next().getValue();
+            it.remove();
+            totalBytes -= eldest.weight();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Removes a file from the cache, unless it has already been replaced.
+     *
+     * @param path The file to remove
+     * @param entry The entry that is outdated
+     */
+    private synchronized void remove(Path path, Entry entry){
+        if(entries.remove(path, entry)){
+            totalBytes -= entry.weight();
+        }
+    }
+
+    /**
+     * @param path The file to look at
+     * @return The attributes of the file, or null if it does not exist
+     */
+    private static BasicFileAttributes attributes(Path path){
+        try{
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }catch(IOException e){
+            return null;
+        }
+    }
+
+    long getHits(){
+        return hits.sum();
+    }
+
+    long getMisses(){
+        return misses.sum();
+    }
+
+    long getEvictions(){
+        return evictions.sum();
+    }
+
+    long getInvalidations(){
+        return invalidations.sum();
+    }
+
+    synchronized int size(){
+        return entries.size();
+    }
+
+    synchronized long getTotalBytes(){
+        return totalBytes;
+    }
+}
@@ -0,0 +1,21 @@
+package WebServer;
+
+import java.io.IOException;
+
+/**
+ * Answers the requests routed to it. A handler is shared by all
+ * connections, so it has to be safe to call from several threads at once.
+ * Handlers are registered with the router before the server is started.
+ */
+interface Handler {
+
+    /**
+     * @param request The request, which is reused once the response has been sent
+     * @param path The path of the request without the query, decoded and with its
+     *             . and .. segments resolved. For a handler mounted
+     *             at a prefix, the part of the path after the prefix, starting with /.
+     * @return The response. A response to HEAD is sent without its body.
+     * @throws IOException If the request could not be answered, which is answered with 500
+     */
+    HttpResponse handle(Request request, String path) throws IOException;
+}
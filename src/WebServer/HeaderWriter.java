@@ -0,0 +1,121 @@
+package WebServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes the status line and the headers of responses into one buffer,
+ * so they can be sent with a single write, together with the start of the
+ * body. Every connection has its own writer and the buffer is reused for
+ * all of its responses. Everything that does not change between responses
+ * is encoded once.
+ */
+final class HeaderWriter {
+    private static final int INITIAL_SIZE = 512;
+
+    private static final byte[] CRLF = bytes("\r\n");
+    private static final byte[] CONTENT_TYPE = bytes("Content-type: ");
+    private static final byte[] DATE = bytes("Date: ");
+    private static final byte[] CONTENT_LENGTH = bytes("Content-Length: ");
+    private static final byte[] CHUNKED = bytes("Transfer-Encoding: chunked\r\n");
+    private static final byte[] SEPARATOR = bytes(": ");
+    private static final byte[] KEEP_ALIVE = bytes("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = bytes("Connection: close\r\n");
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+
+    /**
+     * Encodes the header of a response. The returned buffer is overwritten
+     * by the next call, so it has to be sent before then.
+     *
+     * @param response The response to encode the header of
+     * @return A buffer holding the header, including the empty line that ends it
+     */
+    ByteBuffer write(HttpResponse response){
+        buffer.clear();
+        put(response.getStatus().line());
+        if(response.getContentType() != null){
+            put(CONTENT_TYPE);
+            put(response.getContentType());
+            put(CRLF);
+        }
+        put(DATE);
+        put(HttpDate.current());
+        put(CRLF);
+        if(response.getContentLength() >= 0){
+            put(CONTENT_LENGTH);
+            put(response.getContentLength());
+            put(CRLF);
+        }
+        if(response.isChunked()){
+            put(CHUNKED);
+        }
+        List<String> names = response.getHeaderNames();
+        List<String> values = response.getHeaderValues();
+        for(int i = 0; i < names.size(); i++){
+            put(names.get(i));
+            put(SEPARATOR);
+            put(values.get(i));
+            put(CRLF);
+        }
+        put(response.isKeepAlive() ? KEEP_ALIVE : CLOSE);
+        put(CRLF);                                  // Header have to end with CRLF
+        buffer.flip();
+        return buffer;
+    }
+
+    private void put(byte[] bytes){
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Header values are ASCII, so every character is one byte.
+     */
+    private void put(String text){
+        ensure(text.length());
+        for(int i = 0; i < text.length(); i++){
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a number in decimal without making a string of it.
+     */
+    private void put(long number){
+        ensure(20);
+        if(number == 0){
+            buffer.put((byte) '0');
+            return;
+        }
+        int start = buffer.position();
+        while(number > 0){
+            buffer.put((byte) ('0' + number % 10));
+            number /= 10;
+        }
+        // The digits were written backwards
+        for(int i = start, j = buffer.position() - 1; i < j; i++, j--){
+            byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, b);
+        }
+    }
+
+    /**
+     * Grows the buffer if the next bytes do not fit. Headers that large are
+     * rare, so the buffer keeps its new size for later responses.
+     */
+    private void ensure(int length){
+        if(buffer.remaining() < length){
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    private static byte[] bytes(String text){
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,75 @@
+package WebServer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Formats and parses dates the way HTTP wants them, in the RFC 1123 format
+ * and always in GMT, for example "Sun, 06 Nov 1994 08:49:37 GMT".
+ */
+final class HttpDate {
+    private static final DateTimeFormatter FORMATTER =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // The Date header only has whole seconds, so the current date is
+    // formatted once per second and shared by all responses
+    private static volatile CurrentDate current = new CurrentDate(System.currentTimeMillis());
+
+    private static final class CurrentDate {
+        private final long second;
+        private final byte[] bytes;
+
+        private CurrentDate(long millis){
+            this.second = millis / 1000;
+            this.bytes = format(millis).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private HttpDate(){
+    }
+
+    /**
+     * Gets the current time as an HTTP date. The first call in a new second
+     * formats it, every other call in the same second gets the same bytes.
+     *
+     * @return The encoded date, which must not be modified
+     */
+    static byte[] current(){
+        long now = System.currentTimeMillis();
+        CurrentDate date = current;
+        if(date.second != now / 1000){
+            // Threads racing here format the same second, whichever wins is fine
+            date = new CurrentDate(now);
+            current = date;
+        }
+        return date.bytes;
+    }
+
+    /**
+     * @param millis A time in milliseconds since the epoch
+     * @return The time as an HTTP date
+     */
+    static String format(long millis){
+        return FORMATTER.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * @param value A date sent by a client
+     * @return The date in milliseconds since the epoch, or -1 if it could not be parsed
+     */
+    static long parse(String value){
+        if(value == null){
+            return -1;
+        }
+        try{
+            return ZonedDateTime.parse(value.trim(), FORMATTER).toInstant().toEpochMilli();
+        }catch(DateTimeParseException e){
+            return -1;
+        }
+    }
+}
@@ -3,40 +3,56 @@ package WebServer;
 import java.io.*;
 
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Locale;
-import java.util.StringTokenizer;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 
 public class HttpRequest implements Runnable{
-    private final String CRLF = "\r\n";
+    // The interim response telling a client to go ahead and send the body
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
     private final boolean DEBUG;
     private final Socket CLIENT;
-    private final String DATE;
-
-    private final String BAD_REQUEST = "400 BAD REQUEST";
-    private final String FILE_NOT_FOUND = "404 FILE NOT FOUND";
-    private final String OK = "200 OK";
-    private final String POST = "201 CREATED"; // A post request will always result in a created, since nothing is stored
+    private final ServerConfig CONFIG;
+    private final RequestProcessor PROCESSOR;
+    private final Metrics METRICS;
+    private final AccessLog ACCESS_LOG;
+    private final RequestParser PARSER;
+    // The limits of the client address, or null if clients are not limited
+    private final ClientLimiter.Client LIMITS;
+    // Null if the socket has no channel, its writes then have no timeout
+    private final TimedWriteChannel WRITER;
+    private final ByteBuffer BUFFER = ByteBuffer.allocate(8192);
+    private final HeaderWriter HEADERS = new HeaderWriter();
+    // True while blocked waiting for the first byte of the next request
+    private volatile boolean waiting = false;
+    private volatile boolean closedByServer = false;
 
     /**
      *
      * @param client
-     * @param debug
+     * @param config
+     * @param processor
+     * @param limits The limits of the client address, or null if clients are not limited
      */
-    HttpRequest(Socket client, boolean debug){
+    HttpRequest(Socket client, ServerConfig config, RequestProcessor processor, ClientLimiter.Client limits){
         this.CLIENT = client;
-        DEBUG = debug;
-
-        // Setting the current date
-        Locale localeUS = new Locale("us","US");
-        String zone = ZonedDateTime.now().format(DateTimeFormatter.ofPattern("z")).toString();
-        DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy H:mm:ss",localeUS);
-        DATE = LocalDateTime.now().format(HTTP_DATE_FORMATTER).toString() + " " + zone;
+        this.CONFIG = config;
+        this.PROCESSOR = processor;
+        this.METRICS = processor.getMetrics();
+        this.ACCESS_LOG = processor.getAccessLog();
+        this.PARSER = new RequestParser(processor.getBodyHandler(), config.getMaxBodyBytes());
+        this.LIMITS = limits;
+        this.WRITER = client.getChannel() == null ? null : new TimedWriteChannel(client.getChannel());
+        DEBUG = config.isDebug();
     }
 
     /**
+     * Serves requests on the connection until the client closes it, asks
+     * for it to be closed, stays idle for too long, is too slow to send a
+     * request, sends requests faster than it may or has sent the maximum
+     * number of requests for one connection.
      *
      * @throws IOException
      */
@@ -44,240 +60,214 @@ public class HttpRequest implements Runnable{
         // Get the clients input stream
         InputStream is = CLIENT.getInputStream();
 
-        // Get the clients output stream
-        OutputStream os = CLIENT.getOutputStream();
-        BufferedReader br = new BufferedReader(new InputStreamReader(is));
-        String requestLine = br.readLine();
+        // Get the clients output stream, written through the channel so writes time out
+        OutputStream os = new BufferedOutputStream(WRITER != null ? Channels.newOutputStream(WRITER) : CLIENT.getOutputStream());
 
-        // Sometimes when connecting to localhost, a empty request line
-        // is sent after the first request, resulting in an invalid request.
-        if(requestLine == null) {
-            BADRequest(os);
-        }else {
-            if (DEBUG) {
-                System.out.println("--------------------------------------------------------- DEBUG INFORMATION ---------------------------------------------------------");
-                System.out.println("Request line: " + requestLine);
+        BUFFER.clear().flip();
+        int served = 0;
+        boolean keepAlive = true;
+        byte[] address = ACCESS_LOG == null ? null :
+                CLIENT.getInetAddress().getHostAddress().getBytes(StandardCharsets.US_ASCII);
 
-                String headerLine;
-                if (br != null) {
-                    while ((headerLine = br.readLine()).length() != 0) {
-                        System.out.println(headerLine);
-                    }
+        try{
+            while(keepAlive){
+                PARSER.reset();
+                if(!readRequest(is, os)){
+                    break;
                 }
-                System.out.println("-------------------------------------------------------------------------------------------------------------------------------------");
-            }
-
+                served++;
+                long received = System.currentTimeMillis();
 
-            StringTokenizer st = new StringTokenizer(requestLine);
-            String requestMethod = st.nextToken();
-            String fileName = st.nextToken();
-            String httpVersion = st.nextToken();
+                Request request = PARSER.getRequest();
+                // A client over its rate is turned away, and its connection closed, before any work is done for it
+                boolean limited = LIMITS != null && !LIMITS.tryRequest();
+                HttpResponse response = limited
+                        ? PROCESSOR.tooManyRequests(LIMITS.retryAfterSeconds())
+                        : PROCESSOR.process(request);
 
-            fileName = "." + fileName;
+                keepAlive = !limited && request.isKeepAlive() && served < CONFIG.getMaxRequestsPerConnection() &&
+                        !PROCESSOR.isDraining();
+                response.setKeepAlive(keepAlive);
+                long sendStart = System.nanoTime();
+                ByteBuffer header = HEADERS.write(response);
+                int headerLength = header.remaining();
+                long written = response.writeTo(os, WRITER, CONFIG.getZeroCopyThreshold(), header);
 
-            if (httpVersion.equals("HTTP/1.0")) {
-                BADRequest(os);
-            } else {
-                switch (requestMethod) {
-                    case "GET":
-                        GETRequest(os, fileName);
-                        break;
-                    case "HEAD":
-                        HEADRequest(os, fileName);
-                        break;
-                    case "POST":
-                        POSTRequest(os, br);
-                        break;
-                    default:
-                        BADRequest(os);
+                // Pipelined requests that are already buffered are answered
+                // before anything is flushed, so they share as few writes as possible.
+                if(!BUFFER.hasRemaining() || !keepAlive){
+                    os.flush();
+                }
+                METRICS.record(Metrics.Stage.SEND, System.nanoTime() - sendStart);
+                METRICS.bytesWritten(written);
+                METRICS.response(response.getStatus());
+                if(ACCESS_LOG != null){
+                    ACCESS_LOG.log(address, request, response.getStatus(), written - headerLength, received);
                 }
             }
+        }finally{
+            // Releases the body of the last request
+            PARSER.reset();
+            if(DEBUG){
+                System.out.println("Closing client: " +
+                        CLIENT.getInetAddress() + " " + CLIENT.getPort() +
+                        "\n\n");
+            }
+            CLIENT.close();
         }
-        os.close();
-        br.close();
-        if(DEBUG){
-            System.out.println("Closing client: " +
-                    CLIENT.getInetAddress() + " " + CLIENT.getPort() +
-                    "\n\n");
-        }
-        CLIENT.close();
     }
 
     /**
-     * Responds to a POST request
-     * @param os The output stream to write to
-     * @param br The buffer reader to read from
+     * Reads from the client until a whole request has been parsed. Bytes that
+     * belong to a following, pipelined request are kept in the buffer.
+     * While waiting for a request the connection may be idle for the idle
+     * timeout. Once a request has started, its line and headers have to
+     * arrive within the header timeout, and its body may pause for the body
+     * timeout at most, else the client is answered with 408.
+     *
+     * @param is The input stream of the client
+     * @param os The output stream of the client, for 100 Continue
+     * @return True if a request was read, false if the client closed the connection or was too slow
      * @throws IOException
      */
-    private void POSTRequest(OutputStream os, BufferedReader br) throws IOException{
-        br.readLine(); // Pretend to get the POST request and doing something with it.
-        String response = "<!DOCTYPE html>\n" +
-                "<html>\n" +
-                "  <head>\n" +
-                "    <title>Post response</title>\n" +
-                "  </head>\n" +
-                "  <body>\n" +
-                "    <p>Successfully created your POST request</p>\n" +
-                "  </body>\n" +
-                "</html>\n";
-        sendHeader(os, POST, "text/html", response.getBytes().length);
-        os.write(response.getBytes());
-        os.flush();
+    private boolean readRequest(InputStream is, OutputStream os) throws IOException{
+        long parseTime = 0;
+        // When the first bytes of the request arrived, 0 until they have
+        long started = BUFFER.hasRemaining() ? System.currentTimeMillis() : 0;
+        while(true){
+            long parseStart = System.nanoTime();
+            boolean complete = PARSER.parse(BUFFER);
+            parseTime += System.nanoTime() - parseStart;
+            if(complete){
+                break;
+            }
+            if(PARSER.takeContinue()){
+                os.write(CONTINUE);
+                os.flush();
+            }
+            BUFFER.compact();
+            // Checked after setting waiting, and drain sets draining before it looks at
+            // waiting, so a stopping server either sees this connection waiting or it sees the drain
+            waiting = BUFFER.position() == 0 && PARSER.isIdle();
+            if(waiting && PROCESSOR.isDraining()){
+                return false;
+            }
+            int timeout = CONFIG.getIdleTimeoutMillis();
+            if(!waiting){
+                if(started == 0){
+                    started = System.currentTimeMillis();
+                }
+                timeout = PARSER.isReadingHead()
+                        ? (int) (started + CONFIG.getHeaderTimeoutMillis() - System.currentTimeMillis())
+                        : CONFIG.getBodyTimeoutMillis();
+                if(timeout <= 0){
+                    requestTimeout(os);
+                    return false;
+                }
+            }
+            int read;
+            try{
+                CLIENT.setSoTimeout(timeout);
+                read = is.read(BUFFER.array(), BUFFER.position(), BUFFER.remaining());
+            }catch(SocketTimeoutException e){
+                if(waiting){
+                    // The connection was idle for too long
+                    return false;
+                }
+                requestTimeout(os);
+                return false;
+            }finally{
+                waiting = false;
+            }
+            if(read == -1){
+                return false;
+            }
+            METRICS.bytesRead(read);
+            BUFFER.position(BUFFER.position() + read);
+            BUFFER.flip();
+        }
+        // Only the time spent parsing, not the time spent waiting for the client
+        METRICS.record(Metrics.Stage.PARSE, parseTime);
+        return true;
     }
 
     /**
-     * Responds to a HEAD request
-     * @param os The output stream to read from
-     * @param fileName The filename that should have been sent in the GET request
-     * @throws IOException
+     * Tells a client that was too slow to send its request so. The
+     * connection is closed afterwards.
+     *
+     * @param os The output stream of the client
      */
-    private void HEADRequest(OutputStream os, String fileName) throws IOException{
-        File f = new File(fileName);
-        if(!f.exists()){
-            String response = "<!DOCTYPE html>\n" +
-                    "<HTML>\n" +
-                    "  <HEAD>\n" +
-                    "    <TITLE>Not Found</TITLE>\n" +
-                    "  </HEAD>\n" +
-                    "  <BODY>\n" +
-                    "    404 Not Found\n" +
-                    "  </BODY>\n" +
-                    "</HTML>";
-            sendHeader(os, FILE_NOT_FOUND, "text/html", response.getBytes().length);
-        }else{
-            long fileSize = f.length();
-            sendHeader(os, OK, contentType(fileName), fileSize);
+    private void requestTimeout(OutputStream os){
+        HttpResponse response = PROCESSOR.requestTimeout();
+        METRICS.response(response.getStatus());
+        try{
+            METRICS.bytesWritten(response.writeTo(os));
+            os.flush();
+        }catch(IOException e){
+            // The connection is closed anyway
         }
     }
 
     /**
-     * Responds to a bad request
-     * @param os The output stream to write to
+     * Responds and closes the connection without reading a request. Used
+     * when the server already handles as many connections as it is allowed
+     * to, or the client has as many open as it may.
+     * @param response The response turning the client away
      * @throws IOException
      */
-    private void BADRequest(OutputStream os) throws IOException{
-        String response = "<!DOCTYPE html>\n" +
-                "<HTML>\n" +
-                "  <HEAD>\n" +
-                "    <TITLE>Bad request</TITLE>\n" +
-                "  </HEAD>\n" +
-                "  <BODY>\n" +
-                "    400 Bad Request\n" +
-                "  </BODY>\n" +
-                "</HTML>\n" +
-                "\n";
-        sendHeader(os, BAD_REQUEST, "text/html", response.getBytes().length);
-        os.write((response + CRLF).getBytes());
-        os.write(CRLF.getBytes());
+    void reject(HttpResponse response) throws IOException{
+        OutputStream os = CLIENT.getOutputStream();
+        METRICS.connectionRejected();
+        METRICS.response(response.getStatus());
+        METRICS.bytesWritten(response.writeTo(os));
         os.flush();
+        CLIENT.close();
     }
 
     /**
-     * Responds to a get request. Will send a fileNotFound respnse if the
-     * requested file could not be found.
-     *
-     * @param os The output stream to write to
-     * @param fileName The file that was requested
-     * @throws IOException
+     * Closes the connection if it is waiting for its next request, so a
+     * stopping server does not have to wait for the idle timeout. A request
+     * that arrives at the same moment is lost, as with any keep-alive
+     * connection the server closes, and clients send it again.
      */
-    private void GETRequest(OutputStream os, String fileName) throws IOException{
-        File f = new File(fileName);
-        if(!f.exists()){
-            fileNotFound(os);
-        }else{
-            FileInputStream fis = new FileInputStream(f);
-            long fileSize = f.length();
-            sendHeader(os, OK, contentType(fileName), fileSize);
-            sendBytes(fis, os);
+    void closeIfWaiting(){
+        if(waiting){
+            close();
         }
     }
 
     /**
-     * Response which should be sent when a requested file could not be found
-     * @param os The output stream to write to
-     * @throws IOException
-     */
-    private void fileNotFound(OutputStream os) throws IOException{
-        String response = "<!DOCTYPE html>\n" +
-                "<HTML>\n" +
-                "  <HEAD>\n" +
-                "    <TITLE>Not Found</TITLE>\n" +
-                "  </HEAD>\n" +
-                "  <BODY>\n" +
-                "    404 Not Found\n" +
-                "  </BODY>\n" +
-                "</HTML>";
-        sendHeader(os, FILE_NOT_FOUND, "text/html", response.getBytes().length);
-        os.write((response + CRLF).getBytes());
-        os.write(CRLF.getBytes());
-        os.flush();
-    }
-
-    /**
-     * Method for sending header to client.
+     * Closes the connection if a write has been blocked for longer than the
+     * write timeout, as the client stopped reading the response.
      *
-     * @param os The output stram of the connected client
-     * @param status The status code and message of the request
-     * @param contentType The content type of the data to be sent
-     * @param fileSize The size of the data to be sent
+     * @param now The current time in milliseconds
      */
-    private void sendHeader(OutputStream os, String status, String contentType, long fileSize){
-        try {
-            os.write(("HTTP/1.1 " + status + CRLF).getBytes());             // Status line
-            os.write(("Content-type: " + contentType + CRLF).getBytes());   // Content type line
-            os.write(("Date: " + DATE + CRLF).getBytes());                  // Date line
-            os.write(("Content-Length: " + fileSize + CRLF).getBytes());    // FileSize line
-            os.write(CRLF.getBytes());                                      // Header have to end with CRLF
-            os.flush();
-        }catch(IOException e){
-            e.printStackTrace();
+    void closeIfStalled(long now){
+        if(WRITER != null && WRITER.blockedFor(now) > CONFIG.getWriteTimeoutMillis()){
+            close();
         }
     }
 
     /**
-     * Streams the input file to the output stream.
-     *
-     * @param fis The file input stream of the file to send
-     * @param os The output stream to send the file to
+     * Closes the connection, whatever it is doing.
      */
-    private void sendBytes(FileInputStream fis, OutputStream os){
-        // Construct a 1K buffer to hold bytes on their way to the socket.
-        byte[] buffer = new byte[1024];
-        int bytes = 0;
-        // Copy requested file into the socket's output stream.
+    void close(){
+        closedByServer = true;
         try{
-            while ((bytes = fis.read(buffer)) != -1) {
-                os.write(buffer, 0, bytes);
-            }
-            os.write(CRLF.getBytes());
-            os.flush();
+            CLIENT.close();
         }catch(IOException e){
-            e.printStackTrace();
+            // Nothing more can be done about it
         }
     }
 
-    /**
-     * Method for getting the content type of the requested file.
-     *
-     * @param fileName The name of the requested file
-     * @return The content type of the requested file
-     */
-    private static String contentType(String fileName) {
-        if(fileName.endsWith(".htm") || fileName.endsWith(".html")) {
-            return "text/html";
-        }
-        if(fileName.endsWith(".jpg")) {
-            return "image/jpg";
-        }
-        return "application/octet-stream"; }
-
-
     @Override
     public void run() {
         try{
             processRequest();
         }catch(IOException e) {
-            e.printStackTrace();
+            if(!closedByServer){
+                e.printStackTrace();
+            }
         }
     }
 }
@@ -0,0 +1,563 @@
+package WebServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A response to a request, independent of how it is sent. The body is made
+ * of parts that are either kept in memory or read from a region of a file
+ * while they are sent, so the same response can be written to a blocking
+ * stream or to a non-blocking channel.
+ */
+class HttpResponse {
+    private static final int MIN_COPY_BUFFER = 1024;
+    private static final int MAX_COPY_BUFFER = 64 * 1024;
+
+    // Responses smaller than this are written through the buffered stream,
+    // so pipelined responses can share a write
+    private static final int GATHER_THRESHOLD = 8192;
+
+    private final Status status;
+    private final String contentType;
+    private final long contentLength;
+    private final List<Part> parts;
+    private final Path file;
+    private final boolean chunked;
+    private boolean headersOnly = false;
+    private boolean keepAlive = false;
+    private final List<String> headerNames = new ArrayList<>(4);
+    private final List<String> headerValues = new ArrayList<>(4);
+
+    /**
+     * A body that is produced while it is sent, such as a file compressed on
+     * the fly. Its length is not known when the headers are written.
+     */
+    interface BodySource {
+        /**
+         * @return The next bytes of the body, or null when the body is complete
+         * @throws IOException
+         */
+        ByteBuffer next() throws IOException;
+
+        /**
+         * Releases what the source holds, whether or not it was read to the end.
+         */
+        void close();
+    }
+
+    /**
+     * A piece of the body, either bytes in memory, a region of the file of
+     * the response or a source producing the bytes while they are sent.
+     */
+    static final class Part {
+        private final ByteBuffer buffer;
+        private final BodySource source;
+        private final long position;
+        private final long count;
+
+        private Part(ByteBuffer buffer, BodySource source, long position, long count){
+            this.buffer = buffer;
+            this.source = source;
+            this.position = position;
+            this.count = count;
+        }
+
+        /**
+         * @param buffer The bytes of the part, from its position to its limit
+         * @return A part held in memory
+         */
+        static Part of(ByteBuffer buffer){
+            return new Part(buffer, null, 0, buffer.remaining());
+        }
+
+        /**
+         * @param source The source producing the bytes of the part
+         * @return A part of unknown length, produced while it is sent
+         */
+        static Part of(BodySource source){
+            return new Part(null, source, 0, 0);
+        }
+
+        /**
+         * @param position Where in the file the part starts
+         * @param count The length of the part
+         * @return A part read from the file of the response
+         */
+        static Part ofFile(long position, long count){
+            return new Part(null, null, position, count);
+        }
+
+        /**
+         * @return True if the part is held in memory
+         */
+        boolean inMemory(){
+            return buffer != null;
+        }
+
+        /**
+         * @return True if the part is produced by a source while it is sent
+         */
+        boolean isStream(){
+            return source != null;
+        }
+
+        BodySource source(){
+            return source;
+        }
+
+        /**
+         * @return A view of the bytes of a part held in memory
+         */
+        ByteBuffer buffer(){
+            return buffer.duplicate();
+        }
+
+        long getPosition(){
+            return position;
+        }
+
+        long getCount(){
+            return count;
+        }
+    }
+
+    private HttpResponse(Status status, String contentType, long contentLength, List<Part> parts, Path file){
+        this(status, contentType, contentLength, parts, file, false);
+    }
+
+    private HttpResponse(Status status, String contentType, long contentLength, List<Part> parts, Path file, boolean chunked){
+        this.status = status;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.parts = parts;
+        this.file = file;
+        this.chunked = chunked;
+    }
+
+    /**
+     * Creates a response with a body held in memory.
+     *
+     * @param status The status code and message of the response
+     * @param contentType The content type of the body
+     * @param body The body to send
+     * @return The response
+     */
+    static HttpResponse ofBytes(Status status, String contentType, byte[] body){
+        return ofBuffer(status, contentType, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Creates a response with a body held in a buffer, such as a cached file.
+     *
+     * @param status The status code and message of the response
+     * @param contentType The content type of the body
+     * @param body The body to send, from its position to its limit
+     * @return The response
+     */
+    static HttpResponse ofBuffer(Status status, String contentType, ByteBuffer body){
+        return new HttpResponse(status, contentType, body.remaining(),
+                Collections.singletonList(Part.of(body)), null);
+    }
+
+    /**
+     * Creates a response with the content of a file as body.
+     *
+     * @param status The status code and message of the response
+     * @param contentType The content type of the file
+     * @param file The file to send
+     * @param length The size of the file
+     * @return The response
+     */
+    static HttpResponse ofFile(Status status, String contentType, Path file, long length){
+        return ofParts(status, contentType, file, Collections.singletonList(Part.ofFile(0, length)));
+    }
+
+    /**
+     * Creates a response with a body made of several parts, such as the
+     * ranges of a file that were asked for.
+     *
+     * @param status The status code and message of the response
+     * @param contentType The content type of the body
+     * @param file The file that parts not held in memory are read from, or null if there are none
+     * @param parts The parts of the body, in the order they are sent
+     * @return The response
+     */
+    static HttpResponse ofParts(Status status, String contentType, Path file, List<Part> parts){
+        long length = 0;
+        for(Part part : parts){
+            length += part.count;
+        }
+        return new HttpResponse(status, contentType, length, parts, file);
+    }
+
+    /**
+     * Creates a response with a body produced while it is sent. The length
+     * is not known up front, so the body is sent with the chunked transfer
+     * coding, and the source has to produce the chunk framing itself.
+     *
+     * @param status The status code and message of the response
+     * @param contentType The content type of the body
+     * @param source The source of the chunked body
+     * @return The response
+     */
+    static HttpResponse ofStream(Status status, String contentType, BodySource source){
+        return new HttpResponse(status, contentType, -1,
+                Collections.singletonList(Part.of(source)), null, true);
+    }
+
+    /**
+     * Creates a 304 response, telling the client that its cached copy is
+     * still valid. It has no body and no content headers.
+     *
+     * @param status The status code and message of the response
+     * @return The response
+     */
+    static HttpResponse notModified(Status status){
+        return new HttpResponse(status, null, -1, Collections.<Part>emptyList(), null);
+    }
+
+    /**
+     * Adds a header to the response.
+     *
+     * @param name The name of the header
+     * @param value The value of the header
+     * @return This response
+     */
+    HttpResponse addHeader(String name, String value){
+        headerNames.add(name);
+        headerValues.add(value);
+        return this;
+    }
+
+    /**
+     * Marks the response as an answer to a HEAD request. The headers still
+     * describe the body, but the body itself is never sent.
+     *
+     * @return This response
+     */
+    HttpResponse headersOnly(){
+        headersOnly = true;
+        return this;
+    }
+
+    /**
+     * Decides if the connection stays open after this response.
+     *
+     * @param keepAlive True if more requests may follow on the same connection
+     */
+    void setKeepAlive(boolean keepAlive){
+        this.keepAlive = keepAlive;
+    }
+
+    boolean isKeepAlive(){
+        return keepAlive;
+    }
+
+    Status getStatus(){
+        return status;
+    }
+
+    String getContentType(){
+        return contentType;
+    }
+
+    long getContentLength(){
+        return contentLength;
+    }
+
+    /**
+     * @return True if the body is sent with the chunked transfer coding
+     */
+    boolean isChunked(){
+        return chunked;
+    }
+
+    /**
+     * @return The names of the headers added to the response, in the order they were added
+     */
+    List<String> getHeaderNames(){
+        return headerNames;
+    }
+
+    /**
+     * @return The values of the headers added to the response, in the same order as their names
+     */
+    List<String> getHeaderValues(){
+        return headerValues;
+    }
+
+    /**
+     * @return True if a body should be sent after the headers
+     */
+    boolean hasBody(){
+        return !headersOnly && (chunked || contentLength > 0);
+    }
+
+    /**
+     * Releases the sources of the body. Has to be called when a response is
+     * dropped before its body has been sent, such as the answer to HEAD.
+     */
+    void close(){
+        for(Part part : parts){
+            if(part.isStream()){
+                part.source.close();
+            }
+        }
+    }
+
+    /**
+     * @return The parts of the body, in the order they are sent
+     */
+    List<Part> getParts(){
+        return parts;
+    }
+
+    /**
+     * Writes the whole response to a blocking output stream. The stream is
+     * not flushed, so several responses can share the same writes.
+     *
+     * @param os The output stream of the connected client
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    long writeTo(OutputStream os) throws IOException{
+        return writeTo(os, null, Long.MAX_VALUE, new HeaderWriter().write(this));
+    }
+
+    /**
+     * Writes the whole response to a blocking connection. File regions of at
+     * least zeroCopyThreshold bytes are sent with FileChannel.transferTo when
+     * the connection has a channel, so the kernel copies them straight from
+     * the page cache to the socket. Smaller regions are copied through the
+     * stream so they can share a write with the headers. The headers and
+     * the parts held in memory that follow them are sent with one gathering
+     * write, unless they are small enough to share a write with other
+     * responses in the stream.
+     *
+     * @param os The output stream of the connected client
+     * @param channel The channel of the connection, or null if it has none
+     * @param zeroCopyThreshold The smallest file region sent with transferTo
+     * @param header The encoded header of this response
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    long writeTo(OutputStream os, GatheringByteChannel channel, long zeroCopyThreshold, ByteBuffer header) throws IOException{
+        long written = header.remaining();
+        if(!hasBody()){
+            close();
+            writeBuffer(os, null, header);
+            return written;
+        }
+        FileChannel fc = null;
+        try{
+            int first = writeHead(os, channel, header);
+            for(int i = 0; i < first; i++){
+                written += parts.get(i).count;
+            }
+            for(Part part : parts.subList(first, parts.size())){
+                if(part.inMemory()){
+                    writeBuffer(os, channel, part.buffer());
+                    written += part.count;
+                    continue;
+                }
+                if(part.isStream()){
+                    ByteBuffer chunk;
+                    while((chunk = part.source.next()) != null){
+                        written += chunk.remaining();
+                        writeBuffer(os, channel, chunk);
+                    }
+                    continue;
+                }
+                if(fc == null){
+                    fc = openFile();
+                }
+                if(channel != null && part.count >= zeroCopyThreshold){
+                    // The headers have to reach the socket before the file does
+                    os.flush();
+                    long position = part.position;
+                    long end = part.position + part.count;
+                    while(position < end){
+                        position += transfer(fc, position, end - position, channel);
+                    }
+                }else{
+                    sendBytes(fc, part.position, part.count, os);
+                }
+                written += part.count;
+            }
+        }finally{
+            close();
+            if(fc != null){
+                fc.close();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes the header and the parts held in memory that directly follow it.
+     *
+     * @param os The output stream of the connected client
+     * @param channel The channel of the connection, or null if it has none
+     * @param header The encoded header of this response
+     * @return The number of parts that were written
+     * @throws IOException
+     */
+    private int writeHead(OutputStream os, GatheringByteChannel channel, ByteBuffer header) throws IOException{
+        int count = 0;
+        long length = header.remaining();
+        while(count < parts.size() && parts.get(count).inMemory()){
+            length += parts.get(count).count;
+            count++;
+        }
+        if(channel == null || length < GATHER_THRESHOLD){
+            writeBuffer(os, null, header);
+            for(int i = 0; i < count; i++){
+                writeBuffer(os, channel, parts.get(i).buffer());
+            }
+            return count;
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[count + 1];
+        buffers[0] = header;
+        for(int i = 0; i < count; i++){
+            buffers[i + 1] = parts.get(i).buffer();
+        }
+        // Responses already in the stream have to reach the socket first
+        os.flush();
+        while(buffers[count].hasRemaining()){
+            channel.write(buffers);
+        }
+        return count;
+    }
+
+    /**
+     * Writes a part held in memory. Heap buffers are written through the
+     * stream, direct buffers are written to the channel if there is one so
+     * they are not copied to the heap first.
+     *
+     * @param os The output stream of the connected client
+     * @param channel The channel of the connection, or null if it has none
+     * @param buffer The bytes to write
+     * @throws IOException
+     */
+    private static void writeBuffer(OutputStream os, WritableByteChannel channel, ByteBuffer buffer) throws IOException{
+        if(buffer.hasArray()){
+            os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }else if(channel != null){
+            os.flush();
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }else{
+            byte[] chunk = new byte[copyBufferSize(buffer.remaining())];
+            while(buffer.hasRemaining()){
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                os.write(chunk, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Opens the file holding the body for reading.
+     *
+     * @return A channel to read the file from
+     * @throws IOException
+     */
+    FileChannel openFile() throws IOException{
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /**
+     * Hands part of a file to the kernel to be sent on the channel.
+     *
+     * @param fc The file to send from
+     * @param position Where in the file to start
+     * @param count The number of bytes left to send
+     * @param channel The channel to send to
+     * @return The number of bytes sent, which may be 0 for a non-blocking channel that is full
+     * @throws IOException If the file has become shorter than the announced length
+     */
+    static long transfer(FileChannel fc, long position, long count, WritableByteChannel channel) throws IOException{
+        long sent = channel instanceof TimedWriteChannel
+                ? ((TimedWriteChannel) channel).transferFrom(fc, position, count)
+                : fc.transferTo(position, count, channel);
+        if(sent == 0 && position >= fc.size()){
+            throw new IOException("File ended before its announced length");
+        }
+        return sent;
+    }
+
+    /**
+     * Reads a region of a file into memory with positional reads.
+     *
+     * @param fc The file to read from
+     * @param position Where in the file the region starts
+     * @param count The length of the region
+     * @return A buffer holding the region
+     * @throws IOException If the file has become shorter than the announced length
+     */
+    static ByteBuffer readRegion(FileChannel fc, long position, int count) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        while(buffer.hasRemaining()){
+            int read = fc.read(buffer, position + buffer.position());
+            if(read == -1){
+                throw new IOException("File ended before its announced length");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Picks a copy buffer size that fits the file, so small files do not
+     * get a large buffer and large files are not copied 1K at a time.
+     *
+     * @param fileSize The size of the file to copy
+     * @return The buffer size to use
+     */
+    static int copyBufferSize(long fileSize){
+        return (int) Math.max(MIN_COPY_BUFFER, Math.min(fileSize, MAX_COPY_BUFFER));
+    }
+
+    /**
+     * Streams a region of the file to the output stream, reading from the
+     * given position without moving the position of the channel.
+     *
+     * @param fc The file to send
+     * @param position Where in the file the region starts
+     * @param count The length of the region
+     * @param os The output stream to send the file to
+     * @throws IOException
+     */
+    private static void sendBytes(FileChannel fc, long position, long count, OutputStream os) throws IOException{
+        // Construct a buffer to hold bytes on their way to the socket.
+        ByteBuffer buffer = ByteBuffer.allocate(copyBufferSize(count));
+        long remaining = count;
+        // Copy requested file into the socket's output stream.
+        while(remaining > 0){
+            buffer.clear();
+            if(buffer.remaining() > remaining){
+                buffer.limit((int) remaining);
+            }
+            int bytes = fc.read(buffer, position);
+            if(bytes == -1){
+                throw new IOException("File ended before its announced length");
+            }
+            os.write(buffer.array(), 0, bytes);
+            position += bytes;
+            remaining -= bytes;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package WebServer;
+
+import Common.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the request pipeline, shared by all
+ * connections. Recording only adds to LongAdders, so it costs a few
+ * nanoseconds and never blocks. The metrics are rendered in the Prometheus
+ * text format on a reserved path.
+ */
+class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * The stages of the pipeline that are timed.
+     */
+    enum Stage {
+        /** From accepting a connection until a thread or reactor starts serving it */
+        ACCEPT("accept"),
+        /** Parsing the request, including handing its body to the body handler */
+        PARSE("parse"),
+        /** Finding the requested file, in the cache or on disk */
+        LOOKUP("lookup"),
+        /** From starting to write a response until all of it has been written */
+        SEND("send");
+
+        private final String label;
+
+        Stage(String label){
+            this.label = label;
+        }
+    }
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder();
+    private final LongAdder connectionsOpen = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    // One counter per status code, indexed by the code
+    private final LongAdder[] responses = new LongAdder[600];
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+
+    private final FileCache fileCache;
+    private final CompressionCache compressionCache;
+    private final PathCache pathCache;
+    private final AccessLog accessLog;
+
+    /**
+     * @param fileCache The file cache whose counters are included
+     * @param compressionCache The compression cache whose counters are included
+     * @param pathCache The cache of resolved paths whose counters are included
+     * @param accessLog The access log whose counters are included, or null if there is none
+     */
+    Metrics(FileCache fileCache, CompressionCache compressionCache, PathCache pathCache, AccessLog accessLog){
+        this.fileCache = fileCache;
+        this.compressionCache = compressionCache;
+        this.pathCache = pathCache;
+        this.accessLog = accessLog;
+        for(int i = 100; i < responses.length; i++){
+            responses[i] = new LongAdder();
+        }
+        for(int i = 0; i < stages.length; i++){
+            stages[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Called when a connection has been accepted and will be served.
+     */
+    void connectionOpened(){
+        connectionsAccepted.increment();
+        connectionsOpen.increment();
+    }
+
+    void connectionClosed(){
+        connectionsOpen.decrement();
+    }
+
+    /**
+     * Called when a connection is answered with 503 because the server is full.
+     */
+    void connectionRejected(){
+        connectionsRejected.increment();
+    }
+
+    void bytesRead(long count){
+        bytesIn.add(count);
+    }
+
+    void bytesWritten(long count){
+        bytesOut.add(count);
+    }
+
+    /**
+     * @param status The status of a response that was sent
+     */
+    void response(Status status){
+        int code = status.getCode();
+        if(code >= 100 && code < responses.length){
+            responses[code].increment();
+        }
+    }
+
+    /**
+     * @param stage The stage that was timed
+     * @param nanos How long the stage took in nanoseconds
+     */
+    void record(Stage stage, long nanos){
+        stages[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     *
+     * @return The metrics
+     */
+    String render(){
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "webserver_connections_accepted_total", "Connections accepted and served", connectionsAccepted.sum());
+        counter(out, "webserver_connections_rejected_total", "Connections answered with 503 because the server was full", connectionsRejected.sum());
+        gauge(out, "webserver_connections_open", "Connections currently open", connectionsOpen.sum());
+        counter(out, "webserver_bytes_received_total", "Bytes read from clients", bytesIn.sum());
+        counter(out, "webserver_bytes_sent_total", "Bytes written to clients", bytesOut.sum());
+
+        out.append("# HELP webserver_responses_total Responses sent, by status code\n");
+        out.append("# TYPE webserver_responses_total counter\n");
+        for(int code = 100; code < responses.length; code++){
+            long count = responses[code].sum();
+            if(count > 0){
+                out.append("webserver_responses_total{code=\"").append(code).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        out.append("# HELP webserver_stage_duration_seconds Time spent in each stage of the request pipeline\n");
+        out.append("# TYPE webserver_stage_duration_seconds summary\n");
+        for(Stage stage : Stage.values()){
+            Histogram.Snapshot snapshot = stages[stage.ordinal()].snapshot();
+            for(double quantile : QUANTILES){
+                out.append("webserver_stage_duration_seconds{stage=\"").append(stage.label)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(snapshot.quantile(quantile))).append('\n');
+            }
+            out.append("webserver_stage_duration_seconds_sum{stage=\"").append(stage.label).append("\"} ")
+                    .append(seconds(snapshot.getSum())).append('\n');
+            out.append("webserver_stage_duration_seconds_count{stage=\"").append(stage.label).append("\"} ")
+                    .append(snapshot.getCount()).append('\n');
+        }
+
+        counter(out, "webserver_file_cache_hits_total", "Requests served from the file cache", fileCache.getHits());
+        counter(out, "webserver_file_cache_misses_total", "Requests that had to read the file system", fileCache.getMisses());
+        counter(out, "webserver_file_cache_evictions_total", "Files evicted from the file cache to make room", fileCache.getEvictions());
+        counter(out, "webserver_file_cache_invalidations_total", "Cached files dropped because they changed on disk", fileCache.getInvalidations());
+        gauge(out, "webserver_file_cache_files", "Files in the file cache", fileCache.size());
+        gauge(out, "webserver_file_cache_bytes", "Bytes held by the file cache", fileCache.getTotalBytes());
+        counter(out, "webserver_compression_cache_hits_total", "Compressed variants served from the cache", compressionCache.getHits());
+        counter(out, "webserver_compression_cache_misses_total", "Files that had to be compressed", compressionCache.getMisses());
+        counter(out, "webserver_compression_cache_evictions_total", "Compressed variants evicted to make room", compressionCache.getEvictions());
+        gauge(out, "webserver_compression_cache_bytes", "Bytes held by the compression cache", compressionCache.getTotalBytes());
+        counter(out, "webserver_path_cache_hits_total", "Request paths resolved without the file system", pathCache.getHits());
+        counter(out, "webserver_path_cache_misses_total", "Request paths that had to be looked up on the file system", pathCache.getMisses());
+        counter(out, "webserver_path_cache_not_found_total", "Request paths answered with 404 from the cache", pathCache.getNotFound());
+        gauge(out, "webserver_path_cache_entries", "Request paths in the path cache", pathCache.size());
+        if(accessLog != null){
+            counter(out, "webserver_access_log_dropped_total", "Access log entries dropped because the writer fell behind", accessLog.getDropped());
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value){
+        metric(out, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value){
+        metric(out, name, help, "gauge", value);
+    }
+
+    private static void metric(StringBuilder out, String name, String help, String type, long value){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos){
+        return nanos / 1e9;
+    }
+}
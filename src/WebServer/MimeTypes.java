@@ -0,0 +1,129 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps file extensions to content types. A built-in set covers the files of
+ * a usual web site, and a file in the format of mime.types, with a type
+ * followed by its extensions on every line, can add types or replace them.
+ * The types are stored the way they are sent, with the charset of text
+ * types already appended, so finding one is a single hash lookup.
+ */
+class MimeTypes {
+    static final String DEFAULT_TYPE = "application/octet-stream";
+    private static final String CHARSET = "; charset=utf-8";
+
+    private static final String[] DEFAULTS = {
+            "text/html                  html htm",
+            "text/css                   css",
+            "text/plain                 txt text log",
+            "text/csv                   csv",
+            "text/markdown              md",
+            "text/xml                   xml",
+            "application/javascript     js mjs",
+            "application/json           json map",
+            "application/manifest+json  webmanifest",
+            "application/wasm           wasm",
+            "application/pdf            pdf",
+            "application/zip            zip",
+            "application/gzip           gz",
+            "image/jpeg                 jpg jpeg",
+            "image/png                  png",
+            "image/gif                  gif",
+            "image/webp                 webp",
+            "image/avif                 avif",
+            "image/svg+xml              svg svgz",
+            "image/x-icon               ico",
+            "image/bmp                  bmp",
+            "font/woff                  woff",
+            "font/woff2                 woff2",
+            "font/ttf                   ttf",
+            "font/otf                   otf",
+            "audio/mpeg                 mp3",
+            "audio/ogg                  ogg oga",
+            "audio/wav                  wav",
+            "video/mp4                  mp4",
+            "video/webm                 webm",
+    };
+
+    private final Map<String, String> types = new HashMap<>();
+
+    /**
+     * Creates a registry with the built-in types and the types of the
+     * configured file, if there is one. A file that can not be read is
+     * reported and the built-in types are used alone.
+     *
+     * @param config The settings naming the file of types
+     */
+    MimeTypes(ServerConfig config){
+        for(String line : DEFAULTS){
+            add(line);
+        }
+        String file = config.getMimeTypes();
+        if(file != null){
+            try{
+                load(Paths.get(file));
+            }catch(IOException | RuntimeException e){
+                System.err.println("Could not read the MIME types in " + file + ", using the built-in ones: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Adds the types of a file in the format of mime.types. Lines starting
+     * with # are comments, and a line without extensions is ignored.
+     *
+     * @param file The file to read
+     * @throws IOException If the file can not be read
+     */
+    void load(Path file) throws IOException{
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for(String line : lines){
+            add(line);
+        }
+    }
+
+    /**
+     * @param line A type followed by its extensions, such as "text/css css"
+     */
+    private void add(String line){
+        int comment = line.indexOf('#');
+        if(comment >= 0){
+            line = line.substring(0, comment);
+        }
+        // nginx writes its mime.types as "type ext;" inside a types block
+        String[] fields = line.replace(';', ' ').trim().split("\\s+");
+        if(fields.length < 2 || fields[0].indexOf('/') < 0){
+            return;
+        }
+        String type = fields[0].toLowerCase(Locale.ROOT);
+        if(type.startsWith("text/") || type.equals("application/javascript")){
+            type += CHARSET;
+        }
+        for(int i = 1; i < fields.length; i++){
+            types.put(fields[i].toLowerCase(Locale.ROOT), type);
+        }
+    }
+
+    /**
+     * @param fileName The name or path of a file
+     * @return The content type to send the file with, application/octet-stream if the extension is unknown
+     */
+    String lookup(String fileName){
+        int dot = fileName.lastIndexOf('.');
+        if(dot < 0 || fileName.indexOf('/', dot) >= 0){
+            return DEFAULT_TYPE;
+        }
+        String type = types.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type != null ? type : DEFAULT_TYPE;
+    }
+}
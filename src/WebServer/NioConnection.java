@@ -0,0 +1,641 @@
+package WebServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The state of one connection served by a reactor. Reading and writing never
+ * block, so whatever could not be done yet is kept here until the selector
+ * reports that the channel is ready again.
+ *
+ * An HTTPS connection reads and writes through its TlsChannel, which may
+ * hold bytes of its own: decrypted bytes the selector does not know about,
+ * and encrypted ones still waiting for the socket.
+ *
+ * Everything that may block on the disk is handed to a worker: building the
+ * response, which may read and compress files, reading file regions into
+ * memory and pulling chunks from a source. The connection is not watched
+ * by the selector meanwhile, and the worker hands it back to the reactor
+ * once it is done, so only one thread uses it at a time. Files sent with
+ * transferTo are left to the kernel.
+ */
+class NioConnection {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // How much of a file is read at once to be sent through TLS
+    private static final int TLS_FILE_CHUNK = 64 * 1024;
+
+    /**
+     * Work done for the connection on a worker thread.
+     */
+    private interface Work {
+        void run() throws IOException;
+    }
+
+    private final SocketChannel channel;
+    // Null for a plain HTTP connection
+    private final TlsChannel tls;
+    // The limits of the client address, or null if clients are not limited
+    private final ClientLimiter.Client limits;
+    private final ServerConfig config;
+    private final boolean debug;
+    private final RequestProcessor processor;
+    private final Metrics metrics;
+    private final AccessLog accessLog;
+    // The address of the client as the access log writes it
+    private final byte[] address;
+    private final Runnable onClose;
+    private final Reactor reactor;
+    private final Executor workers;
+    // True while a worker does something for the connection, which the reactor then leaves alone
+    private boolean busy;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final RequestParser parser;
+    private final HeaderWriter headerWriter = new HeaderWriter();
+    private SelectionKey key;
+    private long lastActivity = System.currentTimeMillis();
+    // When the first bytes of the request being read arrived
+    private long requestStart;
+    private int served = 0;
+    private boolean keepAlive;
+    private final long acceptedAt = System.nanoTime();
+    private long parseTime;
+    private long sendStart;
+    private long received;
+
+    // The response currently being written
+    private HttpResponse response;
+    private List<HttpResponse.Part> parts;
+    private int nextPart;
+    private ByteBuffer[] pending;
+    private FileChannel file;
+    private long filePosition;
+    private long fileRemaining;
+    private HttpResponse.BodySource source;
+    // The next chunk of the source, once a worker has pulled it
+    private ByteBuffer chunk;
+    private boolean chunkReady;
+    private int headerLength;
+    private long written;
+
+    /**
+     * @param channel The connected channel, in non-blocking mode
+     * @param tls The TLS session on the channel, or null to serve plain HTTP
+     * @param limits The limits of the client address, or null if clients are not limited
+     * @param processor The processor building the responses
+     * @param config The settings of the server
+     * @param reactor The reactor serving the connection
+     * @param workers Where work that may block is done
+     * @param onClose Called once when the connection is closed
+     */
+    NioConnection(SocketChannel channel, TlsChannel tls, ClientLimiter.Client limits, RequestProcessor processor,
+                  ServerConfig config, Reactor reactor, Executor workers, Runnable onClose){
+        this.channel = channel;
+        this.tls = tls;
+        this.limits = limits;
+        this.processor = processor;
+        this.metrics = processor.getMetrics();
+        this.accessLog = processor.getAccessLog();
+        this.address = accessLog == null ? null :
+                channel.socket().getInetAddress().getHostAddress().getBytes(StandardCharsets.US_ASCII);
+        this.config = config;
+        this.parser = new RequestParser(processor.getBodyHandler(), config.getMaxBodyBytes());
+        this.debug = config.isDebug();
+        this.reactor = reactor;
+        this.workers = workers;
+        this.onClose = onClose;
+    }
+
+    SocketChannel getChannel(){
+        return channel;
+    }
+
+    /**
+     * @param key The key the channel was registered with
+     */
+    void setKey(SelectionKey key){
+        this.key = key;
+        // How long the connection waited to be registered with its reactor
+        metrics.record(Metrics.Stage.ACCEPT, System.nanoTime() - acceptedAt);
+    }
+
+    /**
+     * Closes the connection if the client keeps it waiting for too long: for
+     * its next request, for the rest of its request line and headers, in the
+     * middle of its body, or by not reading the response. A client that
+     * stopped in the middle of a request is told so with 408.
+     *
+     * @param now The current time in milliseconds
+     */
+    void checkTimeouts(long now){
+        if(busy){
+            // The server is the one taking its time
+            return;
+        }
+        if(response != null){
+            if(now - lastActivity > config.getWriteTimeoutMillis()){
+                close();
+            }
+        }else if(isWaiting()){
+            if(now - lastActivity > config.getIdleTimeoutMillis()){
+                close();
+            }
+        }else if(parser.isReadingHead()
+                ? now - requestStart > config.getHeaderTimeoutMillis()
+                : now - lastActivity > config.getBodyTimeoutMillis()){
+            requestTimeout();
+        }
+    }
+
+    /**
+     * Answers a request that did not arrive in time with 408, as far as the
+     * socket takes it at once, and closes the connection.
+     */
+    private void requestTimeout(){
+        try{
+            HttpResponse response = processor.requestTimeout();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            response.writeTo(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            metrics.bytesWritten(tls != null ? tls.write(buffer) : channel.write(buffer));
+            metrics.response(response.getStatus());
+        }catch(IOException e){
+            // The connection is closed anyway
+        }
+        close();
+    }
+
+    /**
+     * @return True if the connection is waiting for its next request, with nothing of it read yet
+     */
+    boolean isWaiting(){
+        return !busy && response == null && readBuffer.position() == 0 && parser.isIdle() &&
+                (tls == null || !tls.hasBufferedInput());
+    }
+
+    /**
+     * Reads what is available and answers the requests that are complete.
+     */
+    void onReadable(){
+        if(busy){
+            // Ready from the same select that handed the connection to a worker
+            return;
+        }
+        try{
+            boolean waiting = isWaiting();
+            int read = read();
+            if(read == -1){
+                close();
+                return;
+            }
+            metrics.bytesRead(read);
+            lastActivity = System.currentTimeMillis();
+            if(waiting && read > 0){
+                requestStart = lastActivity;
+            }
+            serve();
+        }catch(IOException e){
+            close();
+        }
+    }
+
+    /**
+     * Continues writing a response the channel could not take all at once.
+     */
+    void onWritable(){
+        if(busy){
+            return;
+        }
+        try{
+            lastActivity = System.currentTimeMillis();
+            if(response == null){
+                // Only the end of a handshake or an interim response was waiting to be written
+                if(tls == null || tls.flush()){
+                    serve();
+                }
+                return;
+            }
+            if(writePending() && responseComplete()){
+                serve();
+            }
+        }catch(IOException e){
+            close();
+        }
+    }
+
+    /**
+     * Answers every complete request in the read buffer, one after another,
+     * so pipelined requests are answered in the order they were sent.
+     * Returns when more bytes have to be read or a response has to wait
+     * for the channel to become writable.
+     *
+     * @throws IOException
+     */
+    private void serve() throws IOException{
+        while(true){
+            readBuffer.flip();
+            long parseStart = System.nanoTime();
+            boolean complete = parser.parse(readBuffer);
+            parseTime += System.nanoTime() - parseStart;
+            readBuffer.compact();
+            if(!complete){
+                if(tls != null && tls.hasBufferedInput() && readBuffer.hasRemaining()){
+                    // The selector does not know about bytes the TLS channel already holds
+                    int read = read();
+                    if(read == -1){
+                        close();
+                        return;
+                    }
+                    if(read > 0){
+                        metrics.bytesRead(read);
+                        continue;
+                    }
+                }
+                if(parser.takeContinue()){
+                    sendContinue();
+                }
+                key.interestOps(tls != null && tls.hasPendingOutput()
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                return;
+            }
+            // Only the time spent parsing, not the time spent waiting for the client
+            metrics.record(Metrics.Stage.PARSE, parseTime);
+            parseTime = 0;
+            received = System.currentTimeMillis();
+            Request request = parser.getRequest();
+            // A client over its rate is turned away, and its connection closed, before any work is done for it
+            if(limits != null && !limits.tryRequest()){
+                prepare(processor.tooManyRequests(limits.retryAfterSeconds()), false);
+            }else{
+                offload(() -> prepare(processor.process(request), true));
+                return;
+            }
+            if(!send()){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes as much of the current response as the channel takes.
+     *
+     * @return True if the response has been written and the connection stays open for another request
+     * @throws IOException
+     */
+    private boolean send() throws IOException{
+        if(!writePending()){
+            if(!busy){
+                // Stop reading while the response is being written
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return false;
+        }
+        return responseComplete();
+    }
+
+    /**
+     * Hands work that may block to a worker. The selector stops watching the
+     * connection until the worker is done, then the reactor continues
+     * writing the response.
+     *
+     * @param work The work, which may set up what is written next
+     */
+    private void offload(Work work){
+        busy = true;
+        key.interestOps(0);
+        try{
+            workers.execute(() -> {
+                Exception failure = null;
+                try{
+                    work.run();
+                }catch(IOException | RuntimeException e){
+                    failure = e;
+                }
+                Exception failed = failure;
+                reactor.execute(() -> resume(failed));
+            });
+        }catch(RejectedExecutionException e){
+            // The server is stopping
+            busy = false;
+            close();
+        }
+    }
+
+    /**
+     * Continues on the reactor once a worker is done with the connection.
+     *
+     * @param failure What went wrong on the worker, or null if the work was done
+     */
+    private void resume(Exception failure){
+        busy = false;
+        if(!channel.isOpen()){
+            // Closed while the worker was using what the connection holds
+            releaseBody();
+            parser.reset();
+            return;
+        }
+        if(failure != null){
+            if(failure instanceof RuntimeException){
+                failure.printStackTrace();
+            }
+            close();
+            return;
+        }
+        try{
+            lastActivity = System.currentTimeMillis();
+            if(send()){
+                serve();
+            }
+        }catch(IOException | RuntimeException e){
+            if(e instanceof RuntimeException){
+                e.printStackTrace();
+            }
+            close();
+        }
+    }
+
+    /**
+     * Tells the client to go ahead and send the body. The interim response is
+     * tiny and nothing else is being written, so the socket buffer always
+     * has room for it. Through TLS it may still be waiting in the TLS
+     * channel, and is written once the socket is writable.
+     *
+     * @throws IOException If the channel did not take all of it
+     */
+    private void sendContinue() throws IOException{
+        ByteBuffer buffer = ByteBuffer.wrap(HttpRequest.CONTINUE);
+        if(tls != null){
+            tls.write(buffer);
+        }else{
+            channel.write(buffer);
+        }
+        if(buffer.hasRemaining()){
+            throw new IOException("Could not send 100 Continue");
+        }
+    }
+
+    /**
+     * Prepares the response to the parsed request for sending. Done by a
+     * worker, as the first parts of the body may be read from a file,
+     * unless the response is a canned one sent to a client over its rate.
+     *
+     * @param response The response
+     * @param mayKeepAlive False if the connection is closed after the response whatever the client asked for
+     * @throws IOException
+     */
+    private void prepare(HttpResponse response, boolean mayKeepAlive) throws IOException{
+        Request request = parser.getRequest();
+        served++;
+        keepAlive = mayKeepAlive && request.isKeepAlive() && served < config.getMaxRequestsPerConnection() &&
+                !processor.isDraining();
+        response.setKeepAlive(keepAlive);
+
+        this.response = response;
+        sendStart = System.nanoTime();
+        parts = response.hasBody() ? response.getParts() : null;
+        if(parts == null){
+            response.close();
+        }
+        nextPart = 0;
+        fileRemaining = 0;
+        ByteBuffer header = headerWriter.write(response);
+        headerLength = header.remaining();
+        written = 0;
+        // The headers go out together with the parts that follow them in memory
+        pending = nextBuffers(header);
+        if(parts != null && nextPart < parts.size() && !parts.get(nextPart).inMemory() &&
+                !parts.get(nextPart).isStream()){
+            // Opened here rather than on the reactor, the file is sent from it next
+            openFile();
+        }
+    }
+
+    /**
+     * @return True if the next part of the body has to be read from a file into memory
+     */
+    private boolean nextReadsFile(){
+        HttpResponse.Part part = parts.get(nextPart);
+        return !part.inMemory() && !part.isStream() && part.getCount() < config.getZeroCopyThreshold();
+    }
+
+    /**
+     * Collects the parts of the body that can be sent with one gathering
+     * write, starting at the next part. Small file regions are read into
+     * memory so they can be sent together with the headers, larger ones
+     * end the collection and are sent by the kernel with transferTo. A
+     * part produced by a source also ends the collection.
+     *
+     * @param first A buffer to send before the parts, or null
+     * @return The buffers to write, or null if the next part is a large file region or a source
+     * @throws IOException
+     */
+    private ByteBuffer[] nextBuffers(ByteBuffer first) throws IOException{
+        List<ByteBuffer> buffers = new ArrayList<>();
+        if(first != null){
+            buffers.add(first);
+        }
+        while(parts != null && nextPart < parts.size()){
+            HttpResponse.Part part = parts.get(nextPart);
+            if(part.inMemory()){
+                buffers.add(part.buffer());
+            }else if(part.isStream()){
+                break;
+            }else if(part.getCount() < config.getZeroCopyThreshold()){
+                buffers.add(HttpResponse.readRegion(openFile(), part.getPosition(), (int) part.getCount()));
+            }else{
+                break;
+            }
+            nextPart++;
+        }
+        return buffers.isEmpty() ? null : buffers.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * @return The file of the current response, opened the first time it is needed
+     * @throws IOException
+     */
+    private FileChannel openFile() throws IOException{
+        if(file == null){
+            file = response.openFile();
+        }
+        return file;
+    }
+
+    /**
+     * Writes as much of the current response as the channel accepts.
+     *
+     * @return True if the whole response has been written
+     * @throws IOException
+     */
+    private boolean writePending() throws IOException{
+        while(true){
+            if(pending != null){
+                long count = tls != null ? tls.write(pending) : channel.write(pending);
+                metrics.bytesWritten(count);
+                written += count;
+                if(pending[pending.length - 1].hasRemaining()){
+                    return false;
+                }
+                pending = null;
+            }
+            if(fileRemaining > 0){
+                if(tls != null){
+                    // Through TLS the file is copied, as it has to be encrypted on its way, and read by a worker
+                    int count = (int) Math.min(fileRemaining, TLS_FILE_CHUNK);
+                    long position = filePosition;
+                    filePosition += count;
+                    fileRemaining -= count;
+                    offload(() -> pending = new ByteBuffer[]{HttpResponse.readRegion(file, position, count)});
+                    return false;
+                }
+                long sent = HttpResponse.transfer(file, filePosition, fileRemaining, channel);
+                metrics.bytesWritten(sent);
+                written += sent;
+                if(sent == 0){
+                    // The socket buffer is full, wait until it is writable again
+                    return false;
+                }
+                filePosition += sent;
+                fileRemaining -= sent;
+                continue;
+            }
+            if(source != null){
+                // Only pull the next chunk once the previous one has been written, it may be compressed first
+                if(!chunkReady){
+                    HttpResponse.BodySource next = source;
+                    offload(() -> {
+                        chunk = next.next();
+                        chunkReady = true;
+                    });
+                    return false;
+                }
+                chunkReady = false;
+                if(chunk != null){
+                    pending = new ByteBuffer[]{chunk};
+                    chunk = null;
+                    continue;
+                }
+                source.close();
+                source = null;
+            }
+            if(parts == null || nextPart >= parts.size()){
+                if(tls != null && !tls.flush()){
+                    // The last record is still waiting for the socket
+                    return false;
+                }
+                break;
+            }
+            if(nextReadsFile()){
+                offload(() -> pending = nextBuffers(null));
+                return false;
+            }
+            pending = nextBuffers(null);
+            if(pending == null){
+                HttpResponse.Part part = parts.get(nextPart++);
+                if(part.isStream()){
+                    source = part.source();
+                    continue;
+                }
+                // Large file regions are sent by the kernel straight from the page cache
+                openFile();
+                filePosition = part.getPosition();
+                fileRemaining = part.getCount();
+            }
+        }
+        metrics.record(Metrics.Stage.SEND, System.nanoTime() - sendStart);
+        metrics.response(response.getStatus());
+        if(accessLog != null){
+            // The request is only reset after this, so it can still be copied
+            accessLog.log(address, parser.getRequest(), response.getStatus(), written - headerLength, received);
+        }
+        releaseBody();
+        response = null;
+        parts = null;
+        return true;
+    }
+
+    /**
+     * @return The number of bytes read into the read buffer, or -1 if the client closed the connection
+     * @throws IOException
+     */
+    private int read() throws IOException{
+        return tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+    }
+
+    /**
+     * Closes the file and the source of the current response, if they are open.
+     */
+    private void releaseBody(){
+        if(response != null){
+            // Also releases sources the connection was closed before reaching
+            response.close();
+        }
+        source = null;
+        chunk = null;
+        chunkReady = false;
+        if(file != null){
+            try{
+                file.close();
+            }catch(IOException e){
+                // Nothing more can be done about it
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * Called when a response has been written completely.
+     *
+     * @return True if the connection stays open for another request
+     */
+    private boolean responseComplete(){
+        if(!keepAlive){
+            close();
+            return false;
+        }
+        parser.reset();
+        // A pipelined request that is already buffered starts now, otherwise this is set again when it arrives
+        requestStart = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Closes the connection and releases everything it holds.
+     */
+    void close(){
+        if(!channel.isOpen()){
+            return;
+        }
+        if(debug){
+            System.out.println("Closing client: " + channel.socket().getInetAddress() + " " +
+                    channel.socket().getPort() + "\n\n");
+        }
+        if(!busy){
+            releaseBody();
+            // Releases the body of the last request
+            parser.reset();
+        }
+        // Otherwise a worker still uses them, they are released once it hands the connection back
+        try{
+            if(key != null){
+                key.cancel();
+            }
+            if(tls != null){
+                tls.close();
+            }
+            channel.close();
+        }catch(IOException e){
+            // Nothing more can be done about it
+        }
+        onClose.run();
+    }
+}
@@ -0,0 +1,193 @@
+package WebServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An event driven alternative to the thread per connection server. Accepted
+ * connections are spread over a fixed number of reactors, normally one per
+ * core, so an idle connection costs a few buffers instead of a whole thread.
+ * Connections are accepted by the acceptor threads of the server and handed
+ * over to the reactors in turn. HTTPS connections are served by the
+ * reactors too, whichever engine serves plain HTTP. Responses are built,
+ * and files read, by a pool of workers, so a slow disk never holds up the
+ * other connections of a reactor.
+ */
+class NioServer {
+    private final ServerConfig config;
+    private final RequestProcessor processor;
+    private final Metrics metrics;
+    private final ClientLimiter limiter;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger next = new AtomicInteger();
+    private Reactor[] reactors;
+    private ExecutorService workers;
+
+    /**
+     * @param config The settings to start the server with
+     * @param processor The processor building the responses
+     * @param limiter The limits per client address
+     */
+    NioServer(ServerConfig config, RequestProcessor processor, ClientLimiter limiter){
+        this.config = config;
+        this.processor = processor;
+        this.limiter = limiter;
+        this.metrics = processor.getMetrics();
+    }
+
+    /**
+     * Starts the reactors.
+     *
+     * @throws IOException If a selector could not be opened
+     */
+    void start() throws IOException{
+        AtomicInteger count = new AtomicInteger();
+        // A connection has at most one task queued at a time, so the queue is bounded by the connections
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(config.getWorkerThreads(), config.getWorkerThreads(),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "http-nio-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        workers = pool;
+        reactors = new Reactor[config.getReactorThreads()];
+        for(int i = 0; i < reactors.length; i++){
+            reactors[i] = new Reactor();
+            Thread thread = new Thread(reactors[i], "http-reactor-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands an accepted connection to the next reactor, or sheds it with a
+     * 503 if the server is full, or a 429 if its client has too many
+     * connections open. May be called by several acceptor threads.
+     *
+     * @param client The connection that was just accepted, still in blocking mode
+     * @param tls Where the TLS sessions come from for an HTTPS connection, or null for plain HTTP
+     */
+    void dispatch(SocketChannel client, TlsContext tls){
+        if(connections.incrementAndGet() > config.getMaxConnections()){
+            connections.decrementAndGet();
+            reject(client, tls, processor.serviceUnavailable());
+            return;
+        }
+        ClientLimiter.Client limits = limiter.isEnabled() ? limiter.open(client.socket().getInetAddress()) : null;
+        if(limiter.isEnabled() && limits == null){
+            connections.decrementAndGet();
+            reject(client, tls, processor.tooManyRequests(1));
+            return;
+        }
+        try{
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+        }catch(IOException e){
+            connections.decrementAndGet();
+            if(limits != null){
+                limits.close();
+            }
+            closeQuietly(client);
+            return;
+        }
+        metrics.connectionOpened();
+        Reactor reactor = reactors[Math.floorMod(next.getAndIncrement(), reactors.length)];
+        reactor.register(new NioConnection(client, tls == null ? null : tls.open(client), limits, processor, config,
+                reactor, workers, () -> {
+            if(limits != null){
+                limits.close();
+            }
+            connections.decrementAndGet();
+            metrics.connectionClosed();
+        }));
+    }
+
+    /**
+     * Waits for the connections to finish. Connections waiting for their
+     * next request are closed by their reactors, the others once their
+     * current request has been answered, as the processor is draining.
+     *
+     * @param deadline Until when to wait, by System.currentTimeMillis
+     * @return True if every connection has finished
+     */
+    boolean drain(long deadline){
+        for(Reactor reactor : reactors){
+            reactor.drain();
+        }
+        while(connections.get() > 0){
+            if(System.currentTimeMillis() >= deadline){
+                return false;
+            }
+            try{
+                Thread.sleep(50);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the reactors, which close the connections that are still open.
+     */
+    void stop(){
+        for(Reactor reactor : reactors){
+            reactor.stop();
+        }
+        // Work in progress still finishes, and releases what its connection holds
+        workers.shutdown();
+    }
+
+    /**
+     * @return The number of open connections
+     */
+    int activeConnections(){
+        return connections.get();
+    }
+
+    /**
+     * Answers a connection while it is still in blocking mode and closes it.
+     * An HTTPS connection is closed without an answer, which would have to
+     * wait for a handshake, the very work a busy server can not afford.
+     *
+     * @param client The connection to turn away
+     * @param tls Where the TLS sessions come from for an HTTPS connection, or null for plain HTTP
+     * @param response Why it is turned away
+     */
+    private void reject(SocketChannel client, TlsContext tls, HttpResponse response){
+        if(tls != null){
+            metrics.connectionRejected();
+            closeQuietly(client);
+            return;
+        }
+        try{
+            OutputStream os = Channels.newOutputStream(client);
+            metrics.connectionRejected();
+            metrics.response(response.getStatus());
+            metrics.bytesWritten(response.writeTo(os));
+            os.flush();
+        }catch(IOException e){
+            // The client is turned away anyway, nothing more to do
+        }finally{
+            closeQuietly(client);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel client){
+        try{
+            client.close();
+        }catch(IOException e){
+            // Nothing more can be done about it
+        }
+    }
+}
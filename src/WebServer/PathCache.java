@@ -0,0 +1,129 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers which file a path below a document root is served from, so
+ * repeated requests do not have to look at the file system to find out.
+ * Paths that lead to no file are remembered as well, which keeps a client
+ * asking for the same missing files over and over, such as a scanner, off
+ * the disk. The cache is bounded by its number of entries and evicts the
+ * least recently used first. Like the file cache, an entry is only trusted
+ * for the revalidation interval, so new and removed files are noticed.
+ */
+class PathCache {
+    static final String INDEX = "index.html";
+
+    private final int maxEntries;
+    private final long revalidateMillis;
+
+    // Access ordered, so the least recently used path is evicted first
+    private final LinkedHashMap<Path, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+
+    /**
+     * The file a path is served from, or null if there is none.
+     */
+    private static final class Entry {
+        private final Path file;
+        private final long checkedAt;
+
+        private Entry(Path file, long checkedAt){
+            this.file = file;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    /**
+     * @param config The settings deciding the size of the cache and how often paths are checked
+     */
+    PathCache(ServerConfig config){
+        this.maxEntries = config.getPathCacheSize();
+        this.revalidateMillis = config.getCacheRevalidateMillis();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest){
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Finds the file a path is served from. A directory is served from its index.html.
+     *
+     * @param path The normalized path, already confined to its document root
+     * @return The regular file to serve, or null if there is none
+     */
+    Path lookup(Path path){
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized(this){
+            entry = entries.get(path);
+        }
+        if(entry != null && now - entry.checkedAt < revalidateMillis){
+            hits.increment();
+            if(entry.file == null){
+                notFound.increment();
+            }
+            return entry.file;
+        }
+
+        misses.increment();
+        Path file = path;
+        BasicFileAttributes attributes = attributes(file);
+        if(attributes != null && attributes.isDirectory()){
+            file = path.resolve(INDEX);
+            attributes = attributes(file);
+        }
+        if(attributes == null || !attributes.isRegularFile()){
+            file = null;
+        }
+        if(maxEntries > 0){
+            synchronized(this){
+                entries.put(path, new Entry(file, now));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @param path The file to look at
+     * @return The attributes of the file, or null if it does not exist
+     */
+    private static BasicFileAttributes attributes(Path path){
+        try{
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }catch(IOException e){
+            return null;
+        }
+    }
+
+    long getHits(){
+        return hits.sum();
+    }
+
+    long getMisses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return How many of the hits were paths known to lead to no file
+     */
+    long getNotFound(){
+        return notFound.sum();
+    }
+
+    synchronized int size(){
+        return entries.size();
+    }
+}
@@ -0,0 +1,216 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One event loop of the non-blocking server. Each reactor owns a selector
+ * and serves every connection registered with it on its own thread. Work
+ * that may block, such as building a response or reading a file, is done
+ * by the workers, which hand the connection back through execute.
+ *
+ * A connection that fails in an unexpected way is closed on its own, so
+ * one bad request never ends the loop the other connections depend on.
+ */
+class Reactor implements Runnable {
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private final Selector selector;
+    private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    // Set once the loop has ended, tasks are then run by whoever hands them over
+    private volatile boolean stopped = false;
+    private volatile boolean draining = false;
+    private long lastSweep = System.currentTimeMillis();
+
+    /**
+     * @throws IOException If the selector could not be opened
+     */
+    Reactor() throws IOException{
+        selector = Selector.open();
+    }
+
+    /**
+     * Hands a new connection over to this reactor. May be called from any thread.
+     *
+     * @param connection The connection, with its channel in non-blocking mode
+     */
+    void register(NioConnection connection){
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on the reactor thread, such as continuing a connection
+     * once a worker is done with it. May be called from any thread. Once the
+     * reactor has stopped, the task is run by the calling thread instead, so
+     * the connections it hands back still release what they hold.
+     *
+     * @param task The task
+     */
+    void execute(Runnable task){
+        tasks.add(task);
+        if(stopped){
+            runTasks();
+        }else{
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Closes the connections waiting for their next request, now and every
+     * time the loop comes around until it is stopped. The others are closed
+     * once their current request has been answered, as the processor is draining.
+     */
+    void drain(){
+        draining = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the event loop and closes the selector.
+     */
+    void stop(){
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try{
+            while(running){
+                selector.select(SWEEP_INTERVAL);
+                registerPending();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try{
+                        if(key.isValid() && key.isReadable()){
+                            connection.onReadable();
+                        }
+                        if(key.isValid() && key.isWritable()){
+                            connection.onWritable();
+                        }
+                    }catch(RuntimeException e){
+                        fail(connection, e);
+                    }
+                }
+                checkTimeouts();
+                if(draining){
+                    closeWaiting();
+                }
+            }
+        }catch(IOException | ClosedSelectorException e){
+            e.printStackTrace();
+        }finally{
+            closeAll();
+            stopped = true;
+            runTasks();
+        }
+    }
+
+    /**
+     * Runs the tasks handed over since the last select.
+     */
+    private void runTasks(){
+        Runnable task;
+        while((task = tasks.poll()) != null){
+            try{
+                task.run();
+            }catch(RuntimeException e){
+                // The tasks close their connection themselves when they fail, this is a last resort
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes a connection that failed in an unexpected way.
+     *
+     * @param connection The connection
+     * @param e What went wrong
+     */
+    private static void fail(NioConnection connection, RuntimeException e){
+        e.printStackTrace();
+        try{
+            connection.close();
+        }catch(RuntimeException closing){
+            // It is gone either way
+        }
+    }
+
+    /**
+     * Registers the connections handed over since the last select.
+     */
+    private void registerPending(){
+        NioConnection connection;
+        while((connection = registrations.poll()) != null){
+            try{
+                connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+            }catch(IOException e){
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the connections whose clients have kept them waiting too long.
+     * The check is done at most once per second, as it visits every connection.
+     */
+    private void checkTimeouts(){
+        long now = System.currentTimeMillis();
+        if(now - lastSweep < SWEEP_INTERVAL){
+            return;
+        }
+        lastSweep = now;
+        for(SelectionKey key : selector.keys()){
+            NioConnection connection = (NioConnection) key.attachment();
+            if(connection != null){
+                try{
+                    connection.checkTimeouts(now);
+                }catch(RuntimeException e){
+                    fail(connection, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connections that wait for their next request.
+     */
+    private void closeWaiting(){
+        for(SelectionKey key : selector.keys()){
+            NioConnection connection = (NioConnection) key.attachment();
+            if(connection != null && connection.isWaiting()){
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Closes every connection and the selector when the loop ends.
+     */
+    private void closeAll(){
+        for(SelectionKey key : selector.keys()){
+            if(key.attachment() instanceof NioConnection){
+                ((NioConnection) key.attachment()).close();
+            }
+        }
+        try{
+            selector.close();
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package WebServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A parsed request line and its headers. The bytes are kept as they were
+ * received and only referred to by offsets, so parsing a request does not
+ * create any objects. Strings are only made when they are asked for. One
+ * request object belongs to a connection and is reused for every request
+ * sent on it.
+ */
+class Request {
+    static final String HTTP_1_0 = "HTTP/1.0";
+    static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final int INITIAL_HEAD_SIZE = 1024;
+
+    /**
+     * The methods the server knows about. Anything else is OTHER.
+     */
+    enum Method {
+        GET, HEAD, POST, PUT, DELETE, OPTIONS, TRACE, PATCH, CONNECT, OTHER;
+
+        private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+    }
+    // Method.values() copies the array on every call
+    private static final Method[] METHODS = Method.values();
+
+    // The headers the server looks at. They are recognised while parsing, so
+    // finding them later does not compare any names.
+    private static final String[] KNOWN_HEADERS = {
+            "host", "connection", "content-length", "content-type", "transfer-encoding", "expect",
+            "accept-encoding", "range", "if-range", "if-none-match", "if-modified-since",
+            "referer", "user-agent"
+    };
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+    private static final Map<String, Integer> KNOWN_HEADER_INDEX = new HashMap<>();
+    static{
+        for(int i = 0; i < KNOWN_HEADERS.length; i++){
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+            KNOWN_HEADER_INDEX.put(KNOWN_HEADERS[i], i);
+        }
+    }
+    private static final int CONNECTION = 1;
+    private static final int CONTENT_LENGTH = 2;
+    private static final int TRANSFER_ENCODING = 4;
+    private static final int EXPECT = 5;
+    static final int REFERER = 11;
+    static final int USER_AGENT = 12;
+
+    private static final byte[] HTTP_1_0_BYTES = HTTP_1_0.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1_BYTES = HTTP_1_1.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTINUE = "100-continue".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxHeaders;
+    private final int maxHeadSize;
+
+    // The request line and the headers as they were received
+    private byte[] head = new byte[INITIAL_HEAD_SIZE];
+    private int headLength;
+
+    private Method method;
+    private int methodStart, methodEnd;
+    private int targetStart, targetEnd;
+    private int versionStart, versionEnd;
+    private String methodName;
+    private String target;
+    private String version;
+
+    // Where the name and the value of every header are in the head
+    private int headerCount;
+    private final int[] nameStart, nameEnd, valueStart, valueEnd;
+    private final String[] values;
+    private final int[] known = new int[KNOWN_HEADERS.length];
+
+    private int errorStatus;
+    private BodyHandler.Sink body;
+
+    /**
+     * @param maxHeaders The most headers a request may have
+     * @param maxHeadSize The most bytes the request line and the headers may have together
+     */
+    Request(int maxHeaders, int maxHeadSize){
+        this.maxHeaders = maxHeaders;
+        this.maxHeadSize = maxHeadSize;
+        nameStart = new int[maxHeaders];
+        nameEnd = new int[maxHeaders];
+        valueStart = new int[maxHeaders];
+        valueEnd = new int[maxHeaders];
+        values = new String[maxHeaders];
+        reset();
+    }
+
+    /**
+     * Forgets the current request, keeping the memory for the next one.
+     */
+    void reset(){
+        if(body != null){
+            body.release();
+            body = null;
+        }
+        headLength = 0;
+        method = null;
+        methodName = null;
+        target = null;
+        version = null;
+        Arrays.fill(values, 0, headerCount, null);
+        headerCount = 0;
+        Arrays.fill(known, -1);
+        errorStatus = 0;
+    }
+
+    /**
+     * Adds a received byte to the head, growing it up to the maximum size.
+     *
+     * @param b The byte
+     * @return False if the head is full
+     */
+    boolean append(byte b){
+        if(headLength == head.length){
+            if(head.length >= maxHeadSize){
+                return false;
+            }
+            head = Arrays.copyOf(head, Math.min(head.length * 2, maxHeadSize));
+        }
+        head[headLength++] = b;
+        return true;
+    }
+
+    int length(){
+        return headLength;
+    }
+
+    byte byteAt(int index){
+        return head[index];
+    }
+
+    /**
+     * Drops bytes from the end of the head, such as an empty line before the request line.
+     *
+     * @param length The new length of the head
+     */
+    void truncate(int length){
+        headLength = length;
+    }
+
+    /**
+     * Parses the request line, which is three tokens separated by spaces.
+     *
+     * @param start Where the line starts in the head
+     * @param end Where the line ends, without the line ending
+     * @return True if the line is well formed
+     */
+    boolean setRequestLine(int start, int end){
+        methodStart = skipSpaces(start, end);
+        methodEnd = skipToken(methodStart, end);
+        targetStart = skipSpaces(methodEnd, end);
+        targetEnd = skipToken(targetStart, end);
+        versionStart = skipSpaces(targetEnd, end);
+        versionEnd = skipToken(versionStart, end);
+        if(methodStart == methodEnd || targetStart == targetEnd || versionStart == versionEnd ||
+                skipSpaces(versionEnd, end) != end){
+            return false;
+        }
+
+        method = Method.OTHER;
+        for(Method candidate : METHODS){
+            if(candidate != Method.OTHER && equals(methodStart, methodEnd, candidate.bytes, false)){
+                method = candidate;
+                break;
+            }
+        }
+        if(equals(versionStart, versionEnd, HTTP_1_1_BYTES, false)){
+            version = HTTP_1_1;
+        }else if(equals(versionStart, versionEnd, HTTP_1_0_BYTES, false)){
+            version = HTTP_1_0;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a header line.
+     *
+     * @param start Where the line starts in the head
+     * @param end Where the line ends, without the line ending
+     * @return 0 if the header was added, otherwise the status to answer with
+     */
+    int addHeader(int start, int end){
+        int colon = start;
+        while(colon < end && head[colon] != ':'){
+            colon++;
+        }
+        // No whitespace may come before the colon, RFC 9112 section 5.1, as a proxy
+        // could read "Transfer-Encoding : chunked" as some other header and frame the body otherwise
+        if(colon == end || colon == start || isSpace(head[colon - 1])){
+            return 400;
+        }
+        int nameEndIndex = colon;
+        if(headerCount == maxHeaders){
+            return 431;
+        }
+        int slot = headerCount++;
+        nameStart[slot] = start;
+        nameEnd[slot] = nameEndIndex;
+        int value = colon + 1;
+        while(value < end && isSpace(head[value])){
+            value++;
+        }
+        valueStart[slot] = value;
+        valueEnd[slot] = trimEnd(value, end);
+
+        int length = nameEndIndex - start;
+        for(int i = 0; i < KNOWN_HEADER_BYTES.length; i++){
+            if(KNOWN_HEADER_BYTES[i].length == length && equals(start, nameEndIndex, KNOWN_HEADER_BYTES[i], true)){
+                // The headers framing the body must not be ambiguous, else a proxy in front
+                // could split the stream into requests differently than the server does
+                if(i == TRANSFER_ENCODING && known[i] >= 0){
+                    return 400;
+                }
+                if(i == CONTENT_LENGTH && known[i] >= 0 && !sameValue(known[i], slot)){
+                    return 400;
+                }
+                // Any other header sent twice keeps its last value
+                known[i] = slot;
+                break;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param a A header
+     * @param b Another header
+     * @return True if both have the same value
+     */
+    private boolean sameValue(int a, int b){
+        int length = valueEnd[a] - valueStart[a];
+        if(valueEnd[b] - valueStart[b] != length){
+            return false;
+        }
+        for(int i = 0; i < length; i++){
+            if(head[valueStart[a] + i] != head[valueStart[b] + i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The value of Content-Length, 0 if it was not sent or -1 if it is not a number
+     */
+    long getContentLength(){
+        int slot = known[CONTENT_LENGTH];
+        if(slot < 0){
+            return 0;
+        }
+        int start = valueStart[slot];
+        int end = valueEnd[slot];
+        if(start == end || end - start > 18){
+            return -1;
+        }
+        long length = 0;
+        for(int i = start; i < end; i++){
+            byte b = head[i];
+            if(b < '0' || b > '9'){
+                return -1;
+            }
+            length = length * 10 + (b - '0');
+        }
+        return length;
+    }
+
+    /**
+     * @return True if the request has a Transfer-Encoding header
+     */
+    boolean hasTransferEncoding(){
+        return known[TRANSFER_ENCODING] >= 0;
+    }
+
+    /**
+     * @return True if the request has a Content-Length header
+     */
+    boolean hasContentLength(){
+        return known[CONTENT_LENGTH] >= 0;
+    }
+
+    /**
+     * Only a body whose last transfer coding is chunked can be framed, as in
+     * RFC 7230 section 3.3.3, and chunked may not be applied twice.
+     *
+     * @return True if the body is sent with the chunked transfer coding
+     */
+    boolean isChunked(){
+        int slot = known[TRANSFER_ENCODING];
+        if(slot < 0){
+            return false;
+        }
+        int i = valueStart[slot];
+        int end = valueEnd[slot];
+        boolean chunked = false;
+        while(i < end){
+            int comma = i;
+            while(comma < end && head[comma] != ','){
+                comma++;
+            }
+            int start = skipSpaces(i, comma);
+            int tokenEnd = trimEnd(start, comma);
+            if(start < tokenEnd){
+                if(chunked){
+                    // Another coding, or chunked again, after chunked
+                    return false;
+                }
+                chunked = equals(start, tokenEnd, CHUNKED, true);
+            }
+            i = comma + 1;
+        }
+        return chunked;
+    }
+
+    /**
+     * @return True if the client waits for 100 Continue before it sends the body
+     */
+    boolean expectsContinue(){
+        int slot = known[EXPECT];
+        return slot >= 0 && HTTP_1_1.equals(version) && hasToken(slot, CONTINUE);
+    }
+
+    /**
+     * @param body Where the body of the request was written, it is released when the request is reset
+     */
+    void setBody(BodyHandler.Sink body){
+        this.body = body;
+    }
+
+    /**
+     * @return Where the body of the request was written, or null if it had none or it was discarded
+     */
+    BodyHandler.Sink getBody(){
+        return body;
+    }
+
+    /**
+     * Marks the request as malformed or too large.
+     *
+     * @param status The status to answer with, such as 400 or 431
+     */
+    void setError(int status){
+        errorStatus = status;
+    }
+
+    /**
+     * @return True if the request could not be parsed
+     */
+    boolean isBadRequest(){
+        return errorStatus != 0;
+    }
+
+    /**
+     * @return The status a malformed request is answered with, or 0 if the request is well formed
+     */
+    int getErrorStatus(){
+        return errorStatus;
+    }
+
+    Method getMethod(){
+        return method;
+    }
+
+    /**
+     * @return The method as it was sent
+     */
+    String getRequestMethod(){
+        if(method == null){
+            return null;
+        }
+        if(method != Method.OTHER){
+            return method.name();
+        }
+        if(methodName == null){
+            methodName = string(methodStart, methodEnd);
+        }
+        return methodName;
+    }
+
+    /**
+     * @return The request target, such as /index.html
+     */
+    String getFileName(){
+        if(target == null && method != null){
+            target = string(targetStart, targetEnd);
+        }
+        return target;
+    }
+
+    String getHttpVersion(){
+        if(version == null && method != null){
+            version = string(versionStart, versionEnd);
+        }
+        return version;
+    }
+
+    /**
+     * @param name The name of the header, in lower case
+     * @return The value of the header, or null if it was not sent
+     */
+    String getHeader(String name){
+        Integer index = KNOWN_HEADER_INDEX.get(name);
+        int slot = -1;
+        if(index != null){
+            slot = known[index];
+        }else{
+            for(int i = headerCount - 1; i >= 0; i--){
+                if(equals(nameStart[i], nameEnd[i], name)){
+                    slot = i;
+                    break;
+                }
+            }
+        }
+        if(slot < 0){
+            return null;
+        }
+        if(values[slot] == null){
+            values[slot] = string(valueStart[slot], valueEnd[slot]);
+        }
+        return values[slot];
+    }
+
+    /**
+     * Copies the request line, without the line ending, so it can be kept
+     * after the request has been reset. A line that could not be parsed is
+     * copied up to where it was cut off.
+     *
+     * @param dest Where to copy to
+     * @param offset Where to start in dest
+     * @param max The most bytes to copy, longer lines are cut off
+     * @return The number of bytes copied
+     */
+    int copyRequestLine(byte[] dest, int offset, int max){
+        int start = 0;
+        int end;
+        if(method != null){
+            start = methodStart;
+            end = versionEnd;
+        }else{
+            end = 0;
+            while(end < headLength && head[end] != '\r' && head[end] != '\n'){
+                end++;
+            }
+        }
+        int count = Math.min(end - start, max);
+        System.arraycopy(head, start, dest, offset, count);
+        return count;
+    }
+
+    /**
+     * Copies the value of a header without making a string of it.
+     *
+     * @param header The header, such as REFERER
+     * @param dest Where to copy to
+     * @param offset Where to start in dest
+     * @param max The most bytes to copy, longer values are cut off
+     * @return The number of bytes copied, or -1 if the header was not sent
+     */
+    int copyHeader(int header, byte[] dest, int offset, int max){
+        int slot = known[header];
+        if(slot < 0){
+            return -1;
+        }
+        int count = Math.min(valueEnd[slot] - valueStart[slot], max);
+        System.arraycopy(head, valueStart[slot], dest, offset, count);
+        return count;
+    }
+
+    /**
+     * Decides if the client wants the connection to stay open after this
+     * request. HTTP/1.1 connections are persistent unless the client sends
+     * "Connection: close", older versions have to ask for "keep-alive".
+     * A request with both Transfer-Encoding and Content-Length is always the
+     * last one on its connection, as something between the client and the
+     * server may have framed it by the other header.
+     *
+     * @return True if the connection may be kept open
+     */
+    boolean isKeepAlive(){
+        if(isBadRequest() || method == null || (hasTransferEncoding() && hasContentLength())){
+            return false;
+        }
+        int slot = known[CONNECTION];
+        if(HTTP_1_1.equals(version)){
+            return slot < 0 || !hasToken(slot, CLOSE);
+        }
+        return slot >= 0 && hasToken(slot, KEEP_ALIVE);
+    }
+
+    /**
+     * @param slot The header to look in, holding a comma separated list
+     * @param token The token to look for, in lower case
+     * @return True if the list contains the token, ignoring case
+     */
+    private boolean hasToken(int slot, byte[] token){
+        int i = valueStart[slot];
+        int end = valueEnd[slot];
+        while(i < end){
+            int comma = i;
+            while(comma < end && head[comma] != ','){
+                comma++;
+            }
+            int start = i;
+            while(start < comma && isSpace(head[start])){
+                start++;
+            }
+            if(equals(start, trimEnd(start, comma), token, true)){
+                return true;
+            }
+            i = comma + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Compares part of the head with bytes.
+     *
+     * @param start Where the part starts
+     * @param end Where the part ends
+     * @param bytes The bytes to compare with, in lower case if case is ignored
+     * @param ignoreCase True to ignore the case of ASCII letters
+     * @return True if they are equal
+     */
+    private boolean equals(int start, int end, byte[] bytes, boolean ignoreCase){
+        if(end - start != bytes.length){
+            return false;
+        }
+        for(int i = 0; i < bytes.length; i++){
+            byte b = head[start + i];
+            if(ignoreCase && b >= 'A' && b <= 'Z'){
+                b += 'a' - 'A';
+            }
+            if(b != bytes[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares part of the head with a lower case name, ignoring case.
+     */
+    private boolean equals(int start, int end, String name){
+        if(end - start != name.length()){
+            return false;
+        }
+        for(int i = 0; i < name.length(); i++){
+            int b = head[start + i];
+            if(b >= 'A' && b <= 'Z'){
+                b += 'a' - 'A';
+            }
+            if(b != name.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipSpaces(int start, int end){
+        while(start < end && isSpace(head[start])){
+            start++;
+        }
+        return start;
+    }
+
+    private int skipToken(int start, int end){
+        while(start < end && !isSpace(head[start])){
+            start++;
+        }
+        return start;
+    }
+
+    private int trimEnd(int start, int end){
+        while(end > start && isSpace(head[end - 1])){
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isSpace(byte b){
+        return b == ' ' || b == '\t';
+    }
+
+    private String string(int start, int end){
+        return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,388 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental parser for HTTP requests. Bytes can be fed in whatever
+ * pieces they arrive in from the network, the parser remembers where it
+ * stopped and continues from there on the next call. This lets a single
+ * thread serve many connections without waiting for any of them.
+ *
+ * The bytes of the request line and the headers are copied into the
+ * request object the parser owns and parsed in place, so no strings are
+ * made while parsing and both are reused for the next request. The body
+ * is decoded as it arrives, whether it has a Content-Length or is sent in
+ * chunks, and handed straight to a body handler, so it is never held in
+ * memory as a whole.
+ */
+class RequestParser {
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS = 100;
+    private static final int MAX_HEAD_SIZE = 32 * 1024;
+    // Chunk size lines only hold a hex number and rarely an extension
+    private static final int MAX_CHUNK_LINE_LENGTH = 1024;
+
+    private static final int BAD_REQUEST = 400;
+    private static final int PAYLOAD_TOO_LARGE = 413;
+    private static final int URI_TOO_LONG = 414;
+    private static final int HEADERS_TOO_LARGE = 431;
+    private static final int INTERNAL_ERROR = 500;
+
+    private enum State {
+        REQUEST_LINE, HEADERS,
+        BODY,                                       // A body with a Content-Length
+        CHUNK_SIZE, CHUNK_EXTENSION, CHUNK_DATA, CHUNK_END, TRAILERS,
+        COMPLETE
+    }
+
+    private final BodyHandler bodyHandler;
+    private final long maxBodySize;
+
+    private State state = State.REQUEST_LINE;
+    private final Request request = new Request(MAX_HEADERS, MAX_HEAD_SIZE);
+    private int lineStart;
+    private BodyHandler.Sink sink;
+    private long bodyRemaining;
+    private long bodySize;
+    private long chunkSize;
+    private int chunkDigits;
+    private int lineLength;
+    private int trailerSize;
+    private boolean continueNeeded;
+
+    /**
+     * @param bodyHandler Where the bodies of requests are written to
+     * @param maxBodySize The largest body that is accepted
+     */
+    RequestParser(BodyHandler bodyHandler, long maxBodySize){
+        this.bodyHandler = bodyHandler;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Feeds more bytes to the parser. Bytes belonging to the next request
+     * are left in the buffer.
+     *
+     * @param buffer A buffer ready to be read from
+     * @return True if a whole request has been parsed
+     */
+    boolean parse(ByteBuffer buffer){
+        try{
+            while(state != State.COMPLETE && buffer.hasRemaining()){
+                switch(state){
+                    case REQUEST_LINE:
+                    case HEADERS:
+                        parseHead(buffer.get());
+                        break;
+                    case BODY:
+                        bodyRemaining -= consume(buffer, bodyRemaining);
+                        if(bodyRemaining == 0){
+                            bodyComplete();
+                        }
+                        break;
+                    case CHUNK_DATA:
+                        bodyRemaining -= consume(buffer, bodyRemaining);
+                        if(bodyRemaining == 0){
+                            state = State.CHUNK_END;
+                        }
+                        break;
+                    default:
+                        parseChunked(buffer.get());
+                        break;
+                }
+            }
+        }catch(IOException e){
+            // The body handler could not store the body
+            fail(INTERNAL_ERROR);
+        }
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * Handles a byte of the request line or the headers.
+     *
+     * @param b The byte
+     * @throws IOException If the body handler fails
+     */
+    private void parseHead(byte b) throws IOException{
+        if(b == '\n'){
+            int end = request.length();
+            if(end > lineStart && request.byteAt(end - 1) == '\r'){
+                end--;
+            }
+            lineComplete(end);
+            lineStart = request.length();
+        }else if(request.length() - lineStart >= MAX_LINE_LENGTH){
+            fail(state == State.REQUEST_LINE ? URI_TOO_LONG : HEADERS_TOO_LARGE);
+        }else if(!request.append(b)){
+            fail(HEADERS_TOO_LARGE);
+        }
+    }
+
+    /**
+     * Handles a complete line of the request line or the headers.
+     *
+     * @param end Where the line ends in the request, without the line ending
+     * @throws IOException If the body handler fails
+     */
+    private void lineComplete(int end) throws IOException{
+        if(state == State.REQUEST_LINE){
+            // Empty lines before the request line should be ignored
+            if(end == lineStart){
+                request.truncate(lineStart);
+                return;
+            }
+            if(!request.setRequestLine(lineStart, end)){
+                fail(BAD_REQUEST);
+                return;
+            }
+            state = State.HEADERS;
+        }else if(end == lineStart){
+            headersComplete();
+        }else{
+            int status = request.addHeader(lineStart, end);
+            if(status != 0){
+                fail(status);
+            }
+        }
+    }
+
+    /**
+     * Decides if a body follows the headers and how it is framed. A
+     * Transfer-Encoding header overrides Content-Length, as in RFC 7230,
+     * and has to end in chunked, else the body could not be framed at all.
+     *
+     * @throws IOException If the body handler fails
+     */
+    private void headersComplete() throws IOException{
+        if(request.hasTransferEncoding()){
+            if(!request.isChunked()){
+                // Without chunked there is no way to tell where the body ends
+                fail(BAD_REQUEST);
+                return;
+            }
+            openBody();
+            state = State.CHUNK_SIZE;
+            return;
+        }
+
+        bodyRemaining = request.getContentLength();
+        if(bodyRemaining < 0){
+            fail(BAD_REQUEST);
+            return;
+        }
+        if(bodyRemaining > maxBodySize){
+            // Answered before the body is read, the connection is closed afterwards
+            fail(PAYLOAD_TOO_LARGE);
+            return;
+        }
+        if(bodyRemaining == 0){
+            state = State.COMPLETE;
+            return;
+        }
+        openBody();
+        state = State.BODY;
+    }
+
+    /**
+     * Asks the body handler where the body should go.
+     *
+     * @throws IOException If the body handler fails
+     */
+    private void openBody() throws IOException{
+        sink = bodyHandler.open(request);
+        request.setBody(sink);
+        continueNeeded = request.expectsContinue();
+    }
+
+    /**
+     * Handles a byte of a chunk size line, the line ending after the data
+     * of a chunk or the trailers after the last chunk.
+     *
+     * @param b The byte
+     * @throws IOException If the body handler fails
+     */
+    private void parseChunked(byte b) throws IOException{
+        switch(state){
+            case CHUNK_SIZE:
+                int digit = Character.digit(b, 16);
+                if(digit >= 0){
+                    if(chunkDigits == 15){
+                        // Nobody sends chunks of an exabyte
+                        fail(BAD_REQUEST);
+                        return;
+                    }
+                    chunkSize = chunkSize * 16 + digit;
+                    chunkDigits++;
+                }else if(b == ';' || b == ' ' || b == '\t'){
+                    state = State.CHUNK_EXTENSION;
+                }else if(b == '\n'){
+                    chunkSizeComplete();
+                }else if(b != '\r'){
+                    fail(BAD_REQUEST);
+                }
+                break;
+            case CHUNK_EXTENSION:
+                // Chunk extensions are not used, so they are skipped
+                if(b == '\n'){
+                    chunkSizeComplete();
+                }else if(++lineLength > MAX_CHUNK_LINE_LENGTH){
+                    fail(BAD_REQUEST);
+                }
+                break;
+            case CHUNK_END:
+                if(b == '\n'){
+                    state = State.CHUNK_SIZE;
+                }else if(b != '\r'){
+                    fail(BAD_REQUEST);
+                }
+                break;
+            case TRAILERS:
+                // Trailers are not used either, only their size is limited
+                if(b == '\n'){
+                    if(lineLength == 0){
+                        bodyComplete();
+                    }
+                    lineLength = 0;
+                }else if(b != '\r'){
+                    lineLength++;
+                    if(++trailerSize > MAX_HEAD_SIZE){
+                        fail(HEADERS_TOO_LARGE);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Handles the end of a chunk size line. A chunk of size 0 ends the body.
+     */
+    private void chunkSizeComplete(){
+        if(chunkDigits == 0){
+            fail(BAD_REQUEST);
+            return;
+        }
+        lineLength = 0;
+        if(chunkSize == 0){
+            state = State.TRAILERS;
+            return;
+        }
+        if(bodySize + chunkSize > maxBodySize){
+            fail(PAYLOAD_TOO_LARGE);
+            return;
+        }
+        bodyRemaining = chunkSize;
+        chunkSize = 0;
+        chunkDigits = 0;
+        state = State.CHUNK_DATA;
+    }
+
+    /**
+     * Hands the next bytes of the body to the sink, or skips them if the
+     * body is discarded. The bytes are passed as a window of the buffer, so
+     * nothing is copied or allocated.
+     *
+     * @param buffer The buffer holding the bytes
+     * @param max The most bytes that belong to the body
+     * @return The number of bytes consumed
+     * @throws IOException If the sink fails
+     */
+    private int consume(ByteBuffer buffer, long max) throws IOException{
+        int count = (int) Math.min(max, buffer.remaining());
+        int end = buffer.position() + count;
+        if(sink != null){
+            int limit = buffer.limit();
+            buffer.limit(end);
+            try{
+                sink.write(buffer);
+            }finally{
+                buffer.limit(limit);
+            }
+        }
+        buffer.position(end);
+        bodySize += count;
+        return count;
+    }
+
+    /**
+     * Called when the whole body has been received.
+     *
+     * @throws IOException If the sink fails
+     */
+    private void bodyComplete() throws IOException{
+        if(sink != null){
+            sink.complete();
+        }
+        state = State.COMPLETE;
+    }
+
+    /**
+     * Marks the request as malformed. A malformed request counts as complete,
+     * so it can be answered straight away.
+     *
+     * @param status The status to answer with
+     */
+    private void fail(int status){
+        request.setError(status);
+        state = State.COMPLETE;
+        continueNeeded = false;
+    }
+
+    /**
+     * Tells if the client waits for 100 Continue before it sends the body.
+     * Only returns true once per request, so the interim response is sent once.
+     *
+     * @return True if 100 Continue should be sent now
+     */
+    boolean takeContinue(){
+        if(!continueNeeded || state == State.COMPLETE){
+            return false;
+        }
+        continueNeeded = false;
+        return true;
+    }
+
+    /**
+     * Prepares the parser for the next request on the same connection. Also
+     * releases the body of the last request, so it has to be called when the
+     * connection is closed as well.
+     */
+    void reset(){
+        state = State.REQUEST_LINE;
+        request.reset();
+        lineStart = 0;
+        sink = null;
+        bodyRemaining = 0;
+        bodySize = 0;
+        chunkSize = 0;
+        chunkDigits = 0;
+        lineLength = 0;
+        trailerSize = 0;
+        continueNeeded = false;
+    }
+
+    /**
+     * @return True if nothing of a request has been parsed since the last reset
+     */
+    boolean isIdle(){
+        return state == State.REQUEST_LINE && request.length() == 0;
+    }
+
+    /**
+     * @return True while the request line or the headers are being parsed, false once the body is
+     */
+    boolean isReadingHead(){
+        return state == State.REQUEST_LINE || state == State.HEADERS;
+    }
+
+    /**
+     * @return The request that has been parsed, which is reused after reset
+     */
+    Request getRequest(){
+        return request;
+    }
+}
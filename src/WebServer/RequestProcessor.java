@@ -0,0 +1,740 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how a request is answered. The processor only builds responses,
+ * it never touches a connection, so the blocking and the non-blocking
+ * server share exactly the same GET, HEAD and POST semantics. Which
+ * handler answers a request is decided by the router, which serves the
+ * static directories and the metrics, and may route other paths to
+ * handlers of their own.
+ */
+class RequestProcessor {
+    private static final String CRLF = "\r\n";
+    private static final Status BAD_REQUEST = new Status(400, "BAD REQUEST");
+    private static final Status FILE_NOT_FOUND = new Status(404, "FILE NOT FOUND");
+    private static final Status METHOD_NOT_ALLOWED = new Status(405, "METHOD NOT ALLOWED");
+    private static final Status REQUEST_TIMEOUT = new Status(408, "REQUEST TIMEOUT");
+    private static final Status OK = new Status(200, "OK");
+    private static final Status PARTIAL_CONTENT = new Status(206, "PARTIAL CONTENT");
+    private static final Status NOT_MODIFIED = new Status(304, "NOT MODIFIED");
+    private static final Status POST = new Status(201, "CREATED"); // A post request will always result in a created, since nothing is stored
+    private static final Status PAYLOAD_TOO_LARGE = new Status(413, "PAYLOAD TOO LARGE");
+    private static final Status URI_TOO_LONG = new Status(414, "URI TOO LONG");
+    private static final Status RANGE_NOT_SATISFIABLE = new Status(416, "RANGE NOT SATISFIABLE");
+    private static final Status TOO_MANY_REQUESTS = new Status(429, "TOO MANY REQUESTS");
+    private static final Status HEADERS_TOO_LARGE = new Status(431, "REQUEST HEADER FIELDS TOO LARGE");
+    private static final Status INTERNAL_SERVER_ERROR = new Status(500, "INTERNAL SERVER ERROR");
+    private static final Status SERVICE_UNAVAILABLE = new Status(503, "SERVICE UNAVAILABLE");
+
+    private final FileCache cache;
+    private final CompressionCache compressionCache;
+    private final PathCache pathCache;
+    private final BodyHandler bodyHandler;
+    private final Metrics metrics;
+    private final AccessLog accessLog;
+    private final String metricsPath;
+    private final String cacheControl;
+    private final boolean compression;
+    private final Router router;
+    private volatile boolean draining = false;
+
+    /**
+     * Creates a processor. One processor is shared by all connections.
+     *
+     * @param config The settings of the server
+     * @param cache The cache small files are served from
+     * @param compressionCache The cache of compressed versions of small files
+     * @param pathCache The cache of the files request paths lead to
+     * @param bodyHandler Where the bodies of requests are written while they are read
+     * @param metrics Where the pipeline is measured
+     * @param accessLog Where answered requests are logged, or null if they are not
+     */
+    RequestProcessor(ServerConfig config, FileCache cache, CompressionCache compressionCache, PathCache pathCache,
+                     BodyHandler bodyHandler, Metrics metrics, AccessLog accessLog){
+        this.cache = cache;
+        this.compressionCache = compressionCache;
+        this.pathCache = pathCache;
+        this.bodyHandler = bodyHandler;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        this.metricsPath = config.getMetricsPath();
+        this.cacheControl = config.getCacheControl();
+        this.compression = config.isCompression();
+        this.router = defaultRoutes(config);
+    }
+
+    /**
+     * Routes the metrics, the POST requests and the static directories of the
+     * configuration. A POST to any path is answered, since nothing is stored.
+     *
+     * @param config The settings of the server
+     * @return The router
+     */
+    private Router defaultRoutes(ServerConfig config){
+        Router router = new Router();
+        for(Map.Entry<String, String> mount : config.getMounts().entrySet()){
+            router.mount(Request.Method.GET, mount.getKey(), staticDirectory(mount.getValue()));
+        }
+        router.mount(Request.Method.POST, "/", (request, path) -> POSTRequest(request));
+        if(metricsPath != null){
+            router.route(Request.Method.GET, metricsPath, (request, path) -> metricsResponse());
+        }
+        return router;
+    }
+
+    /**
+     * @param directory The directory to serve files from
+     * @return A handler serving the files below the directory, to be mounted with GET
+     */
+    Handler staticDirectory(String directory){
+        DocumentRoot root = new DocumentRoot(directory, pathCache);
+        return (request, path) -> GETRequest(root, path, request);
+    }
+
+    /**
+     * @return The router, handlers can be added to it until the server is started
+     */
+    Router getRouter(){
+        return router;
+    }
+
+    /**
+     * @return Where the bodies of requests are written while they are read
+     */
+    BodyHandler getBodyHandler(){
+        return bodyHandler;
+    }
+
+    /**
+     * Makes every response from now on close its connection, so the
+     * connections finish as soon as their current request is answered.
+     */
+    void drain(){
+        draining = true;
+    }
+
+    /**
+     * @return True if the server is stopping and connections are not kept alive anymore
+     */
+    boolean isDraining(){
+        return draining;
+    }
+
+    /**
+     * @return Where the pipeline is measured
+     */
+    Metrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * @return Where answered requests are logged, or null if they are not
+     */
+    AccessLog getAccessLog(){
+        return accessLog;
+    }
+
+    /**
+     * Builds the response to a request.
+     *
+     * @param request The parsed request
+     * @return The response to send
+     */
+    HttpResponse process(Request request){
+        if(request.isBadRequest()){
+            switch (request.getErrorStatus()) {
+                case 413:
+                    return payloadTooLarge();
+                case 414:
+                    return uriTooLong();
+                case 431:
+                    return headersTooLarge();
+                case 500:
+                    return internalServerError();
+                default:
+                    return BADRequest();
+            }
+        }
+        if (Request.HTTP_1_0.equals(request.getHttpVersion())) {
+            return BADRequest();
+        }
+        // Routed as the file would be resolved, so no spelling of a path can pick another route
+        String path = DocumentRoot.canonicalize(request.getFileName());
+        if(path == null){
+            return BADRequest();
+        }
+        Router.Routes routes = router.match(path);
+        if(routes == null){
+            return fileNotFound();
+        }
+        Handler handler = routes.get(request.getMethod());
+        if(handler == null){
+            return methodNotAllowed(routes.getAllow());
+        }
+        HttpResponse response;
+        try{
+            response = handler.handle(request, routes.remainder(path));
+        }catch(IOException | RuntimeException e){
+            e.printStackTrace();
+            return internalServerError();
+        }
+        return request.getMethod() == Request.Method.HEAD ? response.headersOnly() : response;
+    }
+
+    private static final String POST_BODY = "<!DOCTYPE html>\n" +
+            "<html>\n" +
+            "  <head>\n" +
+            "    <title>Post response</title>\n" +
+            "  </head>\n" +
+            "  <body>\n" +
+            "    <p>Successfully created your POST request</p>\n" +
+            "    <p>Received %d bytes with SHA-256 %s</p>\n" +
+            "  </body>\n" +
+            "</html>\n";
+
+    /**
+     * Responds to a POST request. The body is read back from the body
+     * handler, and its size and digest are sent back, so the client can
+     * tell that all of it arrived.
+     *
+     * @param request The request, with its body
+     * @return The response
+     * @throws IOException If the body could not be read back
+     */
+    HttpResponse POSTRequest(Request request) throws IOException{
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance("SHA-256");
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException("Every Java platform has SHA-256", e);
+        }
+        long size = 0;
+        BodyHandler.Sink body = request.getBody();
+        if(body != null){
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            try (ReadableByteChannel channel = body.open()) {
+                int read;
+                while((read = channel.read(buffer)) != -1){
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                    size += read;
+                }
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest()){
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return HttpResponse.ofBytes(POST, "text/html", String.format(POST_BODY, size, hex).getBytes());
+    }
+
+    /**
+     * Responds to a request for the metrics of the server. The metrics are
+     * never cached, since they change with every request.
+     * @return The response
+     */
+    HttpResponse metricsResponse(){
+        return HttpResponse.ofBytes(OK, "text/plain; version=0.0.4; charset=utf-8", metrics.render().getBytes())
+                .addHeader("Cache-Control", "no-store");
+    }
+
+    private static final byte[] BAD_REQUEST_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Bad request</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    400 Bad Request\n" +
+            "  </BODY>\n" +
+            "</HTML>\n").getBytes();
+
+    /**
+     * Responds to a bad request
+     * @return The response
+     */
+    HttpResponse BADRequest(){
+        return HttpResponse.ofBytes(BAD_REQUEST, "text/html", BAD_REQUEST_BODY);
+    }
+
+    private static final byte[] METHOD_NOT_ALLOWED_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Method Not Allowed</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    405 Method Not Allowed\n" +
+            "  </BODY>\n" +
+            "</HTML>\n").getBytes();
+
+    /**
+     * Response which should be sent when the requested path has no handler for the method
+     * @param allow The methods the path has handlers for
+     * @return The response
+     */
+    HttpResponse methodNotAllowed(String allow){
+        return HttpResponse.ofBytes(METHOD_NOT_ALLOWED, "text/html", METHOD_NOT_ALLOWED_BODY)
+                .addHeader("Allow", allow);
+    }
+
+    private static final byte[] REQUEST_TIMEOUT_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Request Timeout</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    408 Request Timeout\n" +
+            "  </BODY>\n" +
+            "</HTML>\n").getBytes();
+
+    /**
+     * Response which should be sent when a client takes too long to send its
+     * request. The connection is closed after it.
+     * @return The response
+     */
+    HttpResponse requestTimeout(){
+        return HttpResponse.ofBytes(REQUEST_TIMEOUT, "text/html", REQUEST_TIMEOUT_BODY);
+    }
+
+    private static final byte[] TOO_MANY_REQUESTS_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Too Many Requests</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    429 Too Many Requests\n" +
+            "  </BODY>\n" +
+            "</HTML>\n").getBytes();
+
+    /**
+     * Response which should be sent when a client sends more requests, or
+     * opens more connections, than it is allowed to
+     * @param retryAfter How many seconds the client should wait before trying again
+     * @return The response
+     */
+    HttpResponse tooManyRequests(long retryAfter){
+        return HttpResponse.ofBytes(TOO_MANY_REQUESTS, "text/html", TOO_MANY_REQUESTS_BODY)
+                .addHeader("Retry-After", Long.toString(retryAfter));
+    }
+
+    private static final byte[] PAYLOAD_TOO_LARGE_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Payload Too Large</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    413 Payload Too Large\n" +
+            "  </BODY>\n" +
+            "</HTML>\n").getBytes();
+
+    /**
+     * Response which should be sent when the body of a request is larger than allowed
+     * @return The response
+     */
+    HttpResponse payloadTooLarge(){
+        return HttpResponse.ofBytes(PAYLOAD_TOO_LARGE, "text/html", PAYLOAD_TOO_LARGE_BODY);
+    }
+
+    private static final byte[] INTERNAL_SERVER_ERROR_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Internal Server Error</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    500 Internal Server Error\n" +
+            "  </BODY>\n" +
+            "</HTML>\n").getBytes();
+
+    /**
+     * Response which should be sent when the server failed to handle a request,
+     * such as when the body of a request could not be stored
+     * @return The response
+     */
+    HttpResponse internalServerError(){
+        return HttpResponse.ofBytes(INTERNAL_SERVER_ERROR, "text/html", INTERNAL_SERVER_ERROR_BODY);
+    }
+
+    private static final byte[] URI_TOO_LONG_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>URI Too Long</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    414 URI Too Long\n" +
+            "  </BODY>\n" +
+            "</HTML>\n").getBytes();
+
+    /**
+     * Response which should be sent when the request line is too long
+     * @return The response
+     */
+    HttpResponse uriTooLong(){
+        return HttpResponse.ofBytes(URI_TOO_LONG, "text/html", URI_TOO_LONG_BODY);
+    }
+
+    private static final byte[] HEADERS_TOO_LARGE_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Request Header Fields Too Large</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    431 Request Header Fields Too Large\n" +
+            "  </BODY>\n" +
+            "</HTML>\n").getBytes();
+
+    /**
+     * Response which should be sent when a header line is too long, or there
+     * are too many headers
+     * @return The response
+     */
+    HttpResponse headersTooLarge(){
+        return HttpResponse.ofBytes(HEADERS_TOO_LARGE, "text/html", HEADERS_TOO_LARGE_BODY);
+    }
+
+    /**
+     * Responds to a get request. Will send a fileNotFound respnse if the
+     * requested file could not be found. Small files are served from the
+     * cache, larger ones are streamed from the file system. If the client
+     * already has the current version of the file, only 304 is sent, and
+     * if it asks for ranges of the file, only those ranges are sent. Files
+     * of compressible types are sent compressed to clients that accept it.
+     *
+     * @param root The directory the file is served from
+     * @param fileName The canonical path that was requested, below the directory
+     * @param request The request, for its conditional headers
+     * @return The response
+     */
+    HttpResponse GETRequest(DocumentRoot root, String fileName, Request request){
+        long lookupStart = System.nanoTime();
+        Path path = root.resolve(fileName);
+        FileCache.Entry entry = path == null ? null : cache.get(path);
+        metrics.record(Metrics.Stage.LOOKUP, System.nanoTime() - lookupStart);
+        if(entry == null){
+            return fileNotFound();
+        }
+
+        String contentType = entry.getContentType();
+        // Caches have to keep the versions of a compressible file apart
+        boolean compressible = compression && ContentEncoding.isCompressible(contentType);
+        if(compressible && entry.getSize() >= ContentEncoding.MIN_COMPRESS_SIZE){
+            String encoding = ContentEncoding.negotiate(request.getHeader("accept-encoding"));
+            HttpResponse response = encoding == null ? null : encodedResponse(entry, contentType, encoding, request);
+            if(response != null){
+                return response.addHeader("Vary", "Accept-Encoding");
+            }
+        }
+
+        HttpResponse response;
+        if(isNotModified(request, entry.getETag(), entry.getLastModified())){
+            response = notModified(entry, entry.getETag());
+        }else{
+            response = rangeResponse(request, entry, contentType);
+            if(response == null){
+                response = entry.inMemory()
+                        ? HttpResponse.ofBuffer(OK, contentType, entry.content())
+                        : HttpResponse.ofFile(OK, contentType, entry.getPath(), entry.getSize());
+            }
+            response.addHeader("Accept-Ranges", "bytes");
+            addValidators(response, entry, entry.getETag());
+        }
+        if(compressible){
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        return response;
+    }
+
+    /**
+     * Builds the response with a compressed version of a file. A gzip file
+     * next to the requested one, such as index.html.gz, is sent as it is.
+     * Otherwise cached files are compressed once and kept compressed, and
+     * larger files are compressed while they are sent, in chunks since the
+     * compressed length is not known up front. Ranges are not supported
+     * for compressed versions, so the Range header is ignored.
+     *
+     * @param entry The requested file
+     * @param contentType The content type of the file
+     * @param encoding The encoding the client accepts
+     * @param request The request, for its conditional headers
+     * @return The response, or null if the file should be sent uncompressed
+     */
+    private HttpResponse encodedResponse(FileCache.Entry entry, String contentType,
+                                         String encoding, Request request){
+        if(ContentEncoding.GZIP.equals(encoding)){
+            FileCache.Entry precompressed = precompressed(entry);
+            if(precompressed != null){
+                String etag = precompressed.getETag();
+                if(isNotModified(request, etag, entry.getLastModified())){
+                    return notModified(entry, etag);
+                }
+                HttpResponse response = precompressed.inMemory()
+                        ? HttpResponse.ofBuffer(OK, contentType, precompressed.content())
+                        : HttpResponse.ofFile(OK, contentType, precompressed.getPath(), precompressed.getSize());
+                response.addHeader("Content-Encoding", encoding);
+                return addValidators(response, entry, etag);
+            }
+        }
+
+        String etag = ContentEncoding.variantETag(entry.getETag(), encoding);
+        if(isNotModified(request, etag, entry.getLastModified())){
+            return notModified(entry, etag);
+        }
+        HttpResponse response;
+        if(entry.inMemory()){
+            ByteBuffer compressed = compressionCache.get(entry, encoding);
+            if(compressed == null){
+                return null;
+            }
+            response = HttpResponse.ofBuffer(OK, contentType, compressed);
+        }else{
+            response = HttpResponse.ofStream(OK, contentType, new ChunkedCompressor(entry.getPath(),
+                    entry.getSize(), encoding, compressionCache.getLevel()));
+        }
+        response.addHeader("Content-Encoding", encoding);
+        return addValidators(response, entry, etag);
+    }
+
+    /**
+     * Finds a gzip compressed copy of a file, stored next to it with the
+     * extension .gz. A copy older than the file itself is ignored.
+     *
+     * @param entry The requested file
+     * @return The compressed copy, or null if there is none
+     */
+    private FileCache.Entry precompressed(FileCache.Entry entry){
+        FileCache.Entry precompressed = cache.getGzip(entry);
+        if(precompressed == null || precompressed.getLastModified() < entry.getLastModified()){
+            return null;
+        }
+        return precompressed;
+    }
+
+    /**
+     * Builds the response to a request for ranges of a file. A single range
+     * is sent as it is, several ranges are sent as multipart/byteranges.
+     *
+     * @param request The request, for its Range and If-Range headers
+     * @param entry The requested file
+     * @param contentType The content type of the file
+     * @return The response, or null if the whole file should be sent
+     */
+    private HttpResponse rangeResponse(Request request, FileCache.Entry entry, String contentType){
+        String range = request.getHeader("range");
+        // Ranges are only defined for GET
+        if(range == null || request.getMethod() != Request.Method.GET ||
+                !ifRangeMatches(request.getHeader("if-range"), entry)){
+            return null;
+        }
+        long size = entry.getSize();
+        List<ByteRange> ranges = ByteRange.parse(range, size);
+        if(ranges == null){
+            return null;
+        }
+        if(ranges.isEmpty()){
+            return rangeNotSatisfiable(size);
+        }
+
+        if(ranges.size() == 1){
+            ByteRange only = ranges.get(0);
+            HttpResponse response = HttpResponse.ofParts(PARTIAL_CONTENT, contentType, entry.getPath(),
+                    Collections.singletonList(part(entry, only)));
+            return response.addHeader("Content-Range", only.contentRange(size));
+        }
+
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+                Long.toHexString(ThreadLocalRandom.current().nextLong());
+        List<HttpResponse.Part> parts = new ArrayList<>();
+        for(ByteRange byteRange : ranges){
+            String partHeader = CRLF + "--" + boundary + CRLF +
+                    "Content-type: " + contentType + CRLF +
+                    "Content-Range: " + byteRange.contentRange(size) + CRLF +
+                    CRLF;
+            parts.add(HttpResponse.Part.of(ByteBuffer.wrap(partHeader.getBytes())));
+            parts.add(part(entry, byteRange));
+        }
+        parts.add(HttpResponse.Part.of(ByteBuffer.wrap((CRLF + "--" + boundary + "--" + CRLF).getBytes())));
+        return HttpResponse.ofParts(PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary,
+                entry.getPath(), parts);
+    }
+
+    /**
+     * @param entry The requested file
+     * @param range A range of the file
+     * @return The range as a part of a response body, sliced from the cached
+     *         content or read straight from its offset in the file
+     */
+    private static HttpResponse.Part part(FileCache.Entry entry, ByteRange range){
+        if(entry.inMemory()){
+            ByteBuffer content = entry.content();
+            content.limit((int) range.getEnd() + 1).position((int) range.getStart());
+            return HttpResponse.Part.of(content);
+        }
+        return HttpResponse.Part.ofFile(range.getStart(), range.length());
+    }
+
+    /**
+     * Checks the If-Range header, which makes the Range header apply only
+     * if the client still has the current version of the file. Entity tags
+     * are compared the strong way, dates have to match exactly.
+     *
+     * @param ifRange The value of the If-Range header, or null
+     * @param entry The requested file
+     * @return True if the ranges should be sent
+     */
+    private static boolean ifRangeMatches(String ifRange, FileCache.Entry entry){
+        if(ifRange == null){
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+            return ifRange.equals(entry.getETag());
+        }
+        long date = HttpDate.parse(ifRange);
+        return date >= 0 && date / 1000 == entry.getLastModified() / 1000;
+    }
+
+    private static final byte[] RANGE_NOT_SATISFIABLE_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Range Not Satisfiable</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    416 Range Not Satisfiable\n" +
+            "  </BODY>\n" +
+            "</HTML>").getBytes();
+
+    /**
+     * Response which should be sent when none of the requested ranges is inside the file
+     * @param size The size of the file
+     * @return The response
+     */
+    HttpResponse rangeNotSatisfiable(long size){
+        return HttpResponse.ofBytes(RANGE_NOT_SATISFIABLE, "text/html", RANGE_NOT_SATISFIABLE_BODY)
+                .addHeader("Content-Range", "bytes */" + size);
+    }
+
+    /**
+     * Decides if the client already has the current version of a file.
+     * If-None-Match takes precedence over If-Modified-Since, as in RFC 7232,
+     * and an If-Modified-Since date in the future is ignored.
+     *
+     * @param request The request, for its conditional headers
+     * @param etag The entity tag of the current version
+     * @param lastModified The modification time of the current version in milliseconds
+     * @return True if a 304 should be sent instead of the file
+     */
+    private static boolean isNotModified(Request request, String etag, long lastModified){
+        String ifNoneMatch = request.getHeader("if-none-match");
+        if(ifNoneMatch != null){
+            return etagMatches(ifNoneMatch, etag);
+        }
+        long since = HttpDate.parse(request.getHeader("if-modified-since"));
+        // A date later than now is ignored, RFC 9110 section 13.1.3, else a
+        // client with a clock ahead would keep its copy after the file changes
+        if(since < 0 || since > System.currentTimeMillis()){
+            return false;
+        }
+        // HTTP dates only have whole seconds
+        return lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * Compares entity tags the weak way, which is what If-None-Match uses.
+     *
+     * @param ifNoneMatch The value of the If-None-Match header
+     * @param etag The entity tag of the current version
+     * @return True if any of the tags in the header matches
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag){
+        if(ifNoneMatch.trim().equals("*")){
+            return true;
+        }
+        for(String tag : ifNoneMatch.split(",")){
+            tag = tag.trim();
+            if(tag.startsWith("W/")){
+                tag = tag.substring(2);
+            }
+            if(tag.equals(etag)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Response which should be sent when the client already has the current version of a file
+     * @param entry The requested file
+     * @param etag The entity tag of the version the client has
+     * @return The response
+     */
+    private HttpResponse notModified(FileCache.Entry entry, String etag){
+        return addValidators(HttpResponse.notModified(NOT_MODIFIED), entry, etag);
+    }
+
+    /**
+     * Adds the headers that let clients cache a file and ask for it conditionally.
+     *
+     * @param response The response to add the headers to
+     * @param entry The file the response is about
+     * @param etag The entity tag of the version that is sent, which differs from
+     *             the tag of the file when it is sent compressed
+     * @return The response
+     */
+    private HttpResponse addValidators(HttpResponse response, FileCache.Entry entry, String etag){
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", entry.getLastModifiedDate());
+        if(cacheControl != null){
+            response.addHeader("Cache-Control", cacheControl);
+        }
+        return response;
+    }
+
+    private static final byte[] FILE_NOT_FOUND_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Not Found</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    404 Not Found\n" +
+            "  </BODY>\n" +
+            "</HTML>").getBytes();
+
+    /**
+     * Response which should be sent when a requested file could not be found
+     * @return The response
+     */
+    HttpResponse fileNotFound(){
+        return HttpResponse.ofBytes(FILE_NOT_FOUND, "text/html", FILE_NOT_FOUND_BODY);
+    }
+
+    private static final byte[] SERVICE_UNAVAILABLE_BODY = ("<!DOCTYPE html>\n" +
+            "<HTML>\n" +
+            "  <HEAD>\n" +
+            "    <TITLE>Service Unavailable</TITLE>\n" +
+            "  </HEAD>\n" +
+            "  <BODY>\n" +
+            "    503 Service Unavailable\n" +
+            "  </BODY>\n" +
+            "</HTML>").getBytes();
+
+    /**
+     * Response which should be sent when the server already handles as many
+     * connections as it is allowed to.
+     * @return The response
+     */
+    HttpResponse serviceUnavailable(){
+        return HttpResponse.ofBytes(SERVICE_UNAVAILABLE, "text/html", SERVICE_UNAVAILABLE_BODY);
+    }
+}
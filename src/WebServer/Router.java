@@ -0,0 +1,186 @@
+package WebServer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which handler answers a request, by its path and its method.
+ * Routes are kept in a trie with a node per path segment, so finding the
+ * handler walks the path once, whatever the number of routes.
+ *
+ * A route either matches one path exactly, or is mounted at a prefix and
+ * matches every path below it. An exact route wins over a mount, and a
+ * longer prefix wins over a shorter one. Once the path has decided the
+ * route, a method it has no handler for is answered with 405. HEAD is
+ * answered by the GET handler when there is no handler for HEAD itself.
+ *
+ * All routes are added before the server is started, after that the router
+ * is only read and is safe to share between threads.
+ */
+class Router {
+    private static final Request.Method[] METHODS = Request.Method.values();
+
+    /**
+     * The handlers of one path or prefix, one for each method.
+     */
+    static final class Routes {
+        private final Handler[] handlers = new Handler[METHODS.length];
+        // How much of the path the route matched, the handler gets the rest
+        private final int prefixLength;
+        private String allow;
+
+        private Routes(int prefixLength){
+            this.prefixLength = prefixLength;
+        }
+
+        private void set(Request.Method method, Handler handler){
+            handlers[method.ordinal()] = handler;
+            // The Allow header is worked out once, not for every 405
+            StringBuilder allow = new StringBuilder();
+            for(Request.Method candidate : METHODS){
+                boolean allowed = handlers[candidate.ordinal()] != null ||
+                        (candidate == Request.Method.HEAD && handlers[Request.Method.GET.ordinal()] != null);
+                if(allowed){
+                    allow.append(allow.length() == 0 ? "" : ", ").append(candidate.name());
+                }
+            }
+            this.allow = allow.toString();
+        }
+
+        /**
+         * @param method The method of the request
+         * @return The handler for the method, or null if the method is not allowed
+         */
+        Handler get(Request.Method method){
+            Handler handler = handlers[method.ordinal()];
+            if(handler == null && method == Request.Method.HEAD){
+                handler = handlers[Request.Method.GET.ordinal()];
+            }
+            return handler;
+        }
+
+        /**
+         * @return The methods that have a handler, as the value of the Allow header
+         */
+        String getAllow(){
+            return allow;
+        }
+
+        /**
+         * @param path The path of the request
+         * @return The part of the path the handler gets
+         */
+        String remainder(String path){
+            if(prefixLength == 0){
+                return path;
+            }
+            return path.length() == prefixLength ? "/" : path.substring(prefixLength);
+        }
+    }
+
+    /**
+     * A path segment, with the routes ending at it and the nodes of the segments below it.
+     */
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Routes exact;
+        private Routes mount;
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Adds a handler for one path.
+     *
+     * @param method The method the handler answers
+     * @param path The path, such as /metrics
+     * @param handler The handler
+     * @return This router
+     */
+    Router route(Request.Method method, String path, Handler handler){
+        Node node = node(path);
+        if(node.exact == null){
+            node.exact = new Routes(0);
+        }
+        node.exact.set(method, handler);
+        return this;
+    }
+
+    /**
+     * Adds a handler for a path and every path below it.
+     *
+     * @param method The method the handler answers
+     * @param prefix The prefix, such as /static, or / for every path
+     * @param handler The handler
+     * @return This router
+     */
+    Router mount(Request.Method method, String prefix, Handler handler){
+        Node node = node(prefix);
+        if(node.mount == null){
+            node.mount = new Routes(trim(prefix).length());
+        }
+        node.mount.set(method, handler);
+        return this;
+    }
+
+    /**
+     * Finds the node of a path, adding the nodes that are missing.
+     */
+    private Node node(String path){
+        path = trim(path);
+        if(!path.isEmpty() && !path.startsWith("/")){
+            throw new IllegalArgumentException("Routes have to start with /: " + path);
+        }
+        Node node = root;
+        int start = 1;
+        while(start <= path.length()){
+            int end = path.indexOf('/', start);
+            if(end < 0){
+                end = path.length();
+            }
+            node = node.children.computeIfAbsent(path.substring(start, end), segment -> new Node());
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * @return The path without a trailing slash, so / becomes empty
+     */
+    private static String trim(String path){
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    /**
+     * Finds the routes for a path: the exact route if there is one, otherwise
+     * the mount with the longest prefix of the path.
+     *
+     * @param path The canonical path of the request, as made by DocumentRoot.canonicalize
+     * @return The routes, or null if no route matches
+     */
+    Routes match(String path){
+        if(!path.startsWith("/")){
+            return null;
+        }
+        Node node = root;
+        Routes mount = root.mount;
+        int start = 1;
+        int length = path.length();
+        // A trailing slash ends the walk, so /static/ matches the same routes as /static
+        while(start < length){
+            int end = path.indexOf('/', start);
+            if(end < 0){
+                end = length;
+            }
+            node = node.children.get(path.substring(start, end));
+            if(node == null){
+                return mount;
+            }
+            if(node.mount != null){
+                mount = node.mount;
+            }
+            start = end + 1;
+        }
+        return node.exact != null ? node.exact : mount;
+    }
+}
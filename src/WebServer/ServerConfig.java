@@ -0,0 +1,813 @@
+package WebServer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the settings the server is started with. All values can be given as
+ * environment variables, in the same way as JAVA_DEBUG, and fall back to
+ * sensible defaults when they are missing or malformed.
+ */
+public class ServerConfig {
+
+    /**
+     * The kinds of executors a connection can be handled on.
+     */
+    public enum ExecutorMode {
+        /** A bounded pool of ordinary platform threads */
+        PLATFORM,
+        /** One virtual thread per connection (needs a runtime that supports it) */
+        VIRTUAL
+    }
+
+    /**
+     * The ways connections can be served.
+     */
+    public enum Engine {
+        /** One thread per connection, reading and writing through blocking streams */
+        BLOCKING,
+        /** A few reactor threads serving many non-blocking connections each */
+        NIO
+    }
+
+    /**
+     * The formats the access log can be written in.
+     */
+    public enum AccessLogFormat {
+        /** The Common Log Format */
+        COMMON,
+        /** The Common Log Format followed by the Referer and User-Agent headers */
+        COMBINED
+    }
+
+    /**
+     * What a request thread does when the access log cannot keep up.
+     */
+    public enum AccessLogPolicy {
+        /** Drop the entry and count it, so requests are never held up by logging */
+        DROP,
+        /** Wait until the writer has made room, so no entry is lost */
+        BLOCK
+    }
+
+    private boolean debug = false;
+    private int port = 5000;
+    private int backlog = 128;
+    private String bindAddress = null;
+    private boolean reusePort = false;
+    private int acceptorThreads = 1;
+    private int drainTimeoutMillis = 30000;
+    private int tlsPort = 0;
+    private String tlsKeystore = null;
+    private String tlsKeystorePassword = null;
+    private int tlsSessionCacheSize = 20480;
+    private int tlsSessionTimeoutSeconds = 24 * 60 * 60;
+    private ExecutorMode executorMode = ExecutorMode.PLATFORM;
+    private int workerThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private int maxConnections = 1024;
+    private Engine engine = Engine.BLOCKING;
+    private int reactorThreads = Runtime.getRuntime().availableProcessors();
+    private int idleTimeoutMillis = 5000;
+    private int headerTimeoutMillis = 10000;
+    private int bodyTimeoutMillis = 30000;
+    private int writeTimeoutMillis = 30000;
+    private int maxConnectionsPerClient = 0;
+    private int rateLimit = 0;
+    private int rateLimitBurst = 100;
+    private int maxRequestsPerConnection = 100;
+    private int zeroCopyThreshold = 8 * 1024;
+    private int cacheMaxBytes = 64 * 1024 * 1024;
+    private int cacheMaxFileBytes = 1024 * 1024;
+    private int cacheRevalidateMillis = 1000;
+    private boolean cacheDirect = false;
+    private String cacheControl = "no-cache";
+    private boolean compression = true;
+    private int compressionLevel = 6;
+    private int compressionCacheBytes = 16 * 1024 * 1024;
+    private int maxBodyBytes = 10 * 1024 * 1024;
+    private String uploadDir = null;
+    private String metricsPath = "/metrics";
+    private Map<String, String> mounts = new LinkedHashMap<>(Map.of("/", "."));
+    private int pathCacheSize = 10000;
+    private String mimeTypes = null;
+    private String accessLog = null;
+    private AccessLogFormat accessLogFormat = AccessLogFormat.COMBINED;
+    private AccessLogPolicy accessLogPolicy = AccessLogPolicy.DROP;
+    private int accessLogBuffer = 4096;
+    private int accessLogRotateBytes = 64 * 1024 * 1024;
+    private int accessLogRotateMinutes = 0;
+
+    /**
+     * Creates a configuration with the default settings.
+     */
+    public ServerConfig(){
+    }
+
+    /**
+     * Creates a configuration from the environment variables
+     * JAVA_DEBUG, WEBSERVER_PORT, WEBSERVER_BIND, WEBSERVER_BACKLOG, WEBSERVER_REUSE_PORT,
+     * WEBSERVER_ACCEPTORS, WEBSERVER_DRAIN_TIMEOUT_MS, WEBSERVER_TLS_PORT,
+     * WEBSERVER_TLS_KEYSTORE, WEBSERVER_TLS_KEYSTORE_PASSWORD, WEBSERVER_TLS_SESSION_CACHE_SIZE,
+     * WEBSERVER_TLS_SESSION_TIMEOUT_S, WEBSERVER_EXECUTOR,
+     * WEBSERVER_THREADS, WEBSERVER_MAX_CONNECTIONS, WEBSERVER_ENGINE,
+     * WEBSERVER_REACTORS, WEBSERVER_IDLE_TIMEOUT_MS, WEBSERVER_HEADER_TIMEOUT_MS,
+     * WEBSERVER_BODY_TIMEOUT_MS, WEBSERVER_WRITE_TIMEOUT_MS, WEBSERVER_MAX_CONNECTIONS_PER_CLIENT,
+     * WEBSERVER_RATE_LIMIT, WEBSERVER_RATE_LIMIT_BURST, WEBSERVER_MAX_REQUESTS,
+     * WEBSERVER_ZERO_COPY_THRESHOLD, WEBSERVER_CACHE_SIZE, WEBSERVER_CACHE_MAX_FILE,
+     * WEBSERVER_CACHE_REVALIDATE_MS, WEBSERVER_CACHE_DIRECT, WEBSERVER_CACHE_CONTROL,
+     * WEBSERVER_GZIP, WEBSERVER_GZIP_LEVEL, WEBSERVER_GZIP_CACHE_SIZE,
+     * WEBSERVER_MAX_BODY, WEBSERVER_UPLOAD_DIR, WEBSERVER_METRICS_PATH, WEBSERVER_MOUNTS,
+     * WEBSERVER_PATH_CACHE_SIZE, WEBSERVER_MIME_TYPES, WEBSERVER_ACCESS_LOG,
+     * WEBSERVER_ACCESS_LOG_FORMAT, WEBSERVER_ACCESS_LOG_POLICY, WEBSERVER_ACCESS_LOG_BUFFER, WEBSERVER_ACCESS_LOG_ROTATE_SIZE and
+     * WEBSERVER_ACCESS_LOG_ROTATE_MINUTES.
+     *
+     * @return The configuration described by the environment
+     */
+    public static ServerConfig fromEnvironment(){
+        ServerConfig config = new ServerConfig();
+        config.debug = Boolean.parseBoolean(System.getenv("JAVA_DEBUG"));
+        config.port = intEnv("WEBSERVER_PORT", config.port);
+        config.backlog = intEnv("WEBSERVER_BACKLOG", config.backlog);
+        String bindAddress = System.getenv("WEBSERVER_BIND");
+        if(bindAddress != null && !bindAddress.trim().isEmpty()){
+            config.bindAddress = bindAddress.trim();
+        }
+        config.reusePort = Boolean.parseBoolean(System.getenv("WEBSERVER_REUSE_PORT"));
+        config.acceptorThreads = intEnv("WEBSERVER_ACCEPTORS", config.acceptorThreads);
+        config.drainTimeoutMillis = intEnv("WEBSERVER_DRAIN_TIMEOUT_MS", config.drainTimeoutMillis);
+        config.tlsPort = countEnv("WEBSERVER_TLS_PORT", config.tlsPort);
+        String tlsKeystore = System.getenv("WEBSERVER_TLS_KEYSTORE");
+        if(tlsKeystore != null && !tlsKeystore.trim().isEmpty()){
+            config.tlsKeystore = tlsKeystore.trim();
+        }
+        config.tlsKeystorePassword = System.getenv("WEBSERVER_TLS_KEYSTORE_PASSWORD");
+        config.tlsSessionCacheSize = intEnv("WEBSERVER_TLS_SESSION_CACHE_SIZE", config.tlsSessionCacheSize);
+        config.tlsSessionTimeoutSeconds = intEnv("WEBSERVER_TLS_SESSION_TIMEOUT_S", config.tlsSessionTimeoutSeconds);
+        config.workerThreads = intEnv("WEBSERVER_THREADS", config.workerThreads);
+        config.maxConnections = intEnv("WEBSERVER_MAX_CONNECTIONS", config.maxConnections);
+        config.reactorThreads = intEnv("WEBSERVER_REACTORS", config.reactorThreads);
+        config.idleTimeoutMillis = intEnv("WEBSERVER_IDLE_TIMEOUT_MS", config.idleTimeoutMillis);
+        config.headerTimeoutMillis = intEnv("WEBSERVER_HEADER_TIMEOUT_MS", config.headerTimeoutMillis);
+        config.bodyTimeoutMillis = intEnv("WEBSERVER_BODY_TIMEOUT_MS", config.bodyTimeoutMillis);
+        config.writeTimeoutMillis = intEnv("WEBSERVER_WRITE_TIMEOUT_MS", config.writeTimeoutMillis);
+        config.maxConnectionsPerClient = countEnv("WEBSERVER_MAX_CONNECTIONS_PER_CLIENT", config.maxConnectionsPerClient);
+        config.rateLimit = countEnv("WEBSERVER_RATE_LIMIT", config.rateLimit);
+        config.rateLimitBurst = intEnv("WEBSERVER_RATE_LIMIT_BURST", config.rateLimitBurst);
+        config.maxRequestsPerConnection = intEnv("WEBSERVER_MAX_REQUESTS", config.maxRequestsPerConnection);
+        config.zeroCopyThreshold = countEnv("WEBSERVER_ZERO_COPY_THRESHOLD", config.zeroCopyThreshold);
+        config.cacheMaxBytes = countEnv("WEBSERVER_CACHE_SIZE", config.cacheMaxBytes);
+        config.cacheMaxFileBytes = countEnv("WEBSERVER_CACHE_MAX_FILE", config.cacheMaxFileBytes);
+        config.cacheRevalidateMillis = countEnv("WEBSERVER_CACHE_REVALIDATE_MS", config.cacheRevalidateMillis);
+        config.cacheDirect = Boolean.parseBoolean(System.getenv("WEBSERVER_CACHE_DIRECT"));
+        String cacheControl = System.getenv("WEBSERVER_CACHE_CONTROL");
+        if(cacheControl != null){
+            // An empty value turns the header off
+            config.cacheControl = cacheControl.trim().isEmpty() ? null : cacheControl.trim();
+        }
+        String compression = System.getenv("WEBSERVER_GZIP");
+        if(compression != null){
+            config.compression = Boolean.parseBoolean(compression.trim());
+        }
+        config.compressionLevel = Math.min(9, intEnv("WEBSERVER_GZIP_LEVEL", config.compressionLevel));
+        config.compressionCacheBytes = countEnv("WEBSERVER_GZIP_CACHE_SIZE", config.compressionCacheBytes);
+        config.maxBodyBytes = intEnv("WEBSERVER_MAX_BODY", config.maxBodyBytes);
+        String uploadDir = System.getenv("WEBSERVER_UPLOAD_DIR");
+        if(uploadDir != null && !uploadDir.trim().isEmpty()){
+            config.uploadDir = uploadDir.trim();
+        }
+        String metricsPath = System.getenv("WEBSERVER_METRICS_PATH");
+        if(metricsPath != null){
+            // An empty value turns the metrics off
+            config.metricsPath = metricsPath.trim().isEmpty() ? null : metricsPath.trim();
+        }
+        String mounts = System.getenv("WEBSERVER_MOUNTS");
+        if(mounts != null){
+            // A comma separated list of prefix=directory, added to the mount of / at the working directory
+            for(String mount : mounts.split(",")){
+                int equals = mount.indexOf('=');
+                if(equals > 0){
+                    config.mounts.put(mount.substring(0, equals).trim(), mount.substring(equals + 1).trim());
+                }
+            }
+        }
+        config.pathCacheSize = countEnv("WEBSERVER_PATH_CACHE_SIZE", config.pathCacheSize);
+        String mimeTypes = System.getenv("WEBSERVER_MIME_TYPES");
+        if(mimeTypes != null && !mimeTypes.trim().isEmpty()){
+            config.mimeTypes = mimeTypes.trim();
+        }
+        String accessLog = System.getenv("WEBSERVER_ACCESS_LOG");
+        if(accessLog != null && !accessLog.trim().isEmpty()){
+            config.accessLog = accessLog.trim();
+        }else if(config.debug){
+            // Requests used to be printed in debug mode, now they go through the access log
+            config.accessLog = "-";
+        }
+        String format = System.getenv("WEBSERVER_ACCESS_LOG_FORMAT");
+        if(format != null && format.trim().equalsIgnoreCase("common")){
+            config.accessLogFormat = AccessLogFormat.COMMON;
+        }
+        String policy = System.getenv("WEBSERVER_ACCESS_LOG_POLICY");
+        if(policy != null && policy.trim().equalsIgnoreCase("block")){
+            config.accessLogPolicy = AccessLogPolicy.BLOCK;
+        }
+        config.accessLogBuffer = intEnv("WEBSERVER_ACCESS_LOG_BUFFER", config.accessLogBuffer);
+        config.accessLogRotateBytes = intEnv("WEBSERVER_ACCESS_LOG_ROTATE_SIZE", config.accessLogRotateBytes);
+        config.accessLogRotateMinutes = countEnv("WEBSERVER_ACCESS_LOG_ROTATE_MINUTES", config.accessLogRotateMinutes);
+
+        String mode = System.getenv("WEBSERVER_EXECUTOR");
+        if(mode != null && mode.equalsIgnoreCase("virtual")){
+            config.executorMode = ExecutorMode.VIRTUAL;
+        }
+        String engine = System.getenv("WEBSERVER_ENGINE");
+        if(engine != null && engine.equalsIgnoreCase("nio")){
+            config.engine = Engine.NIO;
+        }
+        return config;
+    }
+
+    /**
+     * Reads a positive integer from the environment.
+     *
+     * @param name The name of the environment variable
+     * @param defaultValue The value to use if the variable is missing or invalid
+     * @return The value of the variable, or the default value
+     */
+    static int intEnv(String name, int defaultValue){
+        return intEnv(name, defaultValue, 1);
+    }
+
+    /**
+     * Reads a positive integer or 0 from the environment, for the settings
+     * where 0 means none, no limit or off.
+     *
+     * @param name The name of the environment variable
+     * @param defaultValue The value to use if the variable is missing or invalid
+     * @return The value of the variable, or the default value
+     */
+    static int countEnv(String name, int defaultValue){
+        return intEnv(name, defaultValue, 0);
+    }
+
+    private static int intEnv(String name, int defaultValue, int min){
+        String value = System.getenv(name);
+        if(value == null){
+            return defaultValue;
+        }
+        try{
+            int parsed = Integer.parseInt(value.trim());
+            if(parsed >= min){
+                return parsed;
+            }
+        }catch(NumberFormatException e){
+            // Reported below like a value that is too small
+        }
+        System.err.println("Ignoring invalid value for " + name + ": " + value);
+        return defaultValue;
+    }
+
+    public boolean isDebug(){
+        return debug;
+    }
+
+    public ServerConfig setDebug(boolean debug){
+        this.debug = debug;
+        return this;
+    }
+
+    public int getPort(){
+        return port;
+    }
+
+    public ServerConfig setPort(int port){
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @return How many not yet accepted connections the operating system may queue
+     */
+    public int getBacklog(){
+        return backlog;
+    }
+
+    public ServerConfig setBacklog(int backlog){
+        this.backlog = backlog;
+        return this;
+    }
+
+    public ExecutorMode getExecutorMode(){
+        return executorMode;
+    }
+
+    public ServerConfig setExecutorMode(ExecutorMode executorMode){
+        this.executorMode = executorMode;
+        return this;
+    }
+
+    /**
+     * @return The number of threads in the pool when the platform executor is used
+     */
+    public int getWorkerThreads(){
+        return workerThreads;
+    }
+
+    public ServerConfig setWorkerThreads(int workerThreads){
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * @return The number of connections that may be handled or waiting for a
+     *         thread at the same time. Connections above this are answered with 503.
+     */
+    public int getMaxConnections(){
+        return maxConnections;
+    }
+
+    public ServerConfig setMaxConnections(int maxConnections){
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public Engine getEngine(){
+        return engine;
+    }
+
+    public ServerConfig setEngine(Engine engine){
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * @return The number of reactor threads when the NIO engine is used
+     */
+    public int getReactorThreads(){
+        return reactorThreads;
+    }
+
+    public ServerConfig setReactorThreads(int reactorThreads){
+        this.reactorThreads = reactorThreads;
+        return this;
+    }
+
+    /**
+     * @return How long a kept alive connection may wait for its next request
+     */
+    public int getIdleTimeoutMillis(){
+        return idleTimeoutMillis;
+    }
+
+    public ServerConfig setIdleTimeoutMillis(int idleTimeoutMillis){
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return How many requests may be sent on one connection before it is closed
+     */
+    public int getMaxRequestsPerConnection(){
+        return maxRequestsPerConnection;
+    }
+
+    public ServerConfig setMaxRequestsPerConnection(int maxRequestsPerConnection){
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        return this;
+    }
+
+    /**
+     * @return The smallest file, in bytes, that is sent with transferTo instead of being copied
+     */
+    public int getZeroCopyThreshold(){
+        return zeroCopyThreshold;
+    }
+
+    public ServerConfig setZeroCopyThreshold(int zeroCopyThreshold){
+        this.zeroCopyThreshold = zeroCopyThreshold;
+        return this;
+    }
+
+    /**
+     * @return The number of bytes the file cache may hold in total, 0 to hold no file in memory
+     */
+    public int getCacheMaxBytes(){
+        return cacheMaxBytes;
+    }
+
+    public ServerConfig setCacheMaxBytes(int cacheMaxBytes){
+        this.cacheMaxBytes = cacheMaxBytes;
+        return this;
+    }
+
+    /**
+     * @return The size of the largest file that is kept in the file cache
+     */
+    public int getCacheMaxFileBytes(){
+        return cacheMaxFileBytes;
+    }
+
+    public ServerConfig setCacheMaxFileBytes(int cacheMaxFileBytes){
+        this.cacheMaxFileBytes = cacheMaxFileBytes;
+        return this;
+    }
+
+    /**
+     * @return How long a cached file is served before it is checked against the file system again, 0 to check it every time
+     */
+    public int getCacheRevalidateMillis(){
+        return cacheRevalidateMillis;
+    }
+
+    public ServerConfig setCacheRevalidateMillis(int cacheRevalidateMillis){
+        this.cacheRevalidateMillis = cacheRevalidateMillis;
+        return this;
+    }
+
+    /**
+     * @return True if cached files are held in direct buffers instead of on the heap
+     */
+    public boolean isCacheDirect(){
+        return cacheDirect;
+    }
+
+    public ServerConfig setCacheDirect(boolean cacheDirect){
+        this.cacheDirect = cacheDirect;
+        return this;
+    }
+
+    /**
+     * @return The Cache-Control header sent with files, or null if none is sent
+     */
+    public String getCacheControl(){
+        return cacheControl;
+    }
+
+    public ServerConfig setCacheControl(String cacheControl){
+        this.cacheControl = cacheControl;
+        return this;
+    }
+
+    /**
+     * @return True if compressible files are sent gzip or deflate encoded to clients that accept it
+     */
+    public boolean isCompression(){
+        return compression;
+    }
+
+    public ServerConfig setCompression(boolean compression){
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @return The level files are compressed with, from 1 (fastest) to 9 (smallest)
+     */
+    public int getCompressionLevel(){
+        return compressionLevel;
+    }
+
+    public ServerConfig setCompressionLevel(int compressionLevel){
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * @return The number of compressed bytes the compression cache may hold in total, 0 to compress for every response
+     */
+    public int getCompressionCacheBytes(){
+        return compressionCacheBytes;
+    }
+
+    public ServerConfig setCompressionCacheBytes(int compressionCacheBytes){
+        this.compressionCacheBytes = compressionCacheBytes;
+        return this;
+    }
+
+    /**
+     * @return The largest request body that is accepted. Larger ones are answered with 413.
+     */
+    public int getMaxBodyBytes(){
+        return maxBodyBytes;
+    }
+
+    public ServerConfig setMaxBodyBytes(int maxBodyBytes){
+        this.maxBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    /**
+     * @return The directory request bodies are spooled to, or null for the temporary directory of the system
+     */
+    public String getUploadDir(){
+        return uploadDir;
+    }
+
+    public ServerConfig setUploadDir(String uploadDir){
+        this.uploadDir = uploadDir;
+        return this;
+    }
+
+    /**
+     * @return The path the metrics are served on, or null if they are not served
+     */
+    public String getMetricsPath(){
+        return metricsPath;
+    }
+
+    public ServerConfig setMetricsPath(String metricsPath){
+        this.metricsPath = metricsPath;
+        return this;
+    }
+
+    /**
+     * @return The directories files are served from, by the path prefix they are mounted at
+     */
+    public Map<String, String> getMounts(){
+        return mounts;
+    }
+
+    /**
+     * Serves the files of a directory below a path prefix, in place of any
+     * directory already mounted there.
+     *
+     * @param prefix The path prefix, such as /static, or / for every path
+     * @param directory The directory to serve files from
+     * @return This configuration
+     */
+    public ServerConfig addMount(String prefix, String directory){
+        this.mounts.put(prefix, directory);
+        return this;
+    }
+
+    /**
+     * @return The file requests are logged to, "-" for standard output or null if they are not logged
+     */
+    public String getAccessLog(){
+        return accessLog;
+    }
+
+    public ServerConfig setAccessLog(String accessLog){
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    public AccessLogFormat getAccessLogFormat(){
+        return accessLogFormat;
+    }
+
+    public ServerConfig setAccessLogFormat(AccessLogFormat accessLogFormat){
+        this.accessLogFormat = accessLogFormat;
+        return this;
+    }
+
+    /**
+     * @return What a request thread does when the buffer of the access log is full
+     */
+    public AccessLogPolicy getAccessLogPolicy(){
+        return accessLogPolicy;
+    }
+
+    public ServerConfig setAccessLogPolicy(AccessLogPolicy accessLogPolicy){
+        this.accessLogPolicy = accessLogPolicy;
+        return this;
+    }
+
+    /**
+     * @return How many entries may wait for the access log writer, rounded up to a power of two
+     */
+    public int getAccessLogBuffer(){
+        return accessLogBuffer;
+    }
+
+    public ServerConfig setAccessLogBuffer(int accessLogBuffer){
+        this.accessLogBuffer = accessLogBuffer;
+        return this;
+    }
+
+    /**
+     * @return The size in bytes the access log is rotated at
+     */
+    public int getAccessLogRotateBytes(){
+        return accessLogRotateBytes;
+    }
+
+    public ServerConfig setAccessLogRotateBytes(int accessLogRotateBytes){
+        this.accessLogRotateBytes = accessLogRotateBytes;
+        return this;
+    }
+
+    /**
+     * @return How many minutes the access log is written to before it is rotated, or 0 to only rotate by size
+     */
+    public int getAccessLogRotateMinutes(){
+        return accessLogRotateMinutes;
+    }
+
+    public ServerConfig setAccessLogRotateMinutes(int accessLogRotateMinutes){
+        this.accessLogRotateMinutes = accessLogRotateMinutes;
+        return this;
+    }
+
+    /**
+     * @return How many request paths the files they lead to are remembered for, 0 to not remember any
+     */
+    public int getPathCacheSize(){
+        return pathCacheSize;
+    }
+
+    public ServerConfig setPathCacheSize(int pathCacheSize){
+        this.pathCacheSize = pathCacheSize;
+        return this;
+    }
+
+    /**
+     * @return A file in the format of mime.types with types to add to the built-in ones, or null if there is none
+     */
+    public String getMimeTypes(){
+        return mimeTypes;
+    }
+
+    public ServerConfig setMimeTypes(String mimeTypes){
+        this.mimeTypes = mimeTypes;
+        return this;
+    }
+
+    /**
+     * @return The address to listen on, or null to listen on every interface
+     */
+    public String getBindAddress(){
+        return bindAddress;
+    }
+
+    public ServerConfig setBindAddress(String bindAddress){
+        this.bindAddress = bindAddress;
+        return this;
+    }
+
+    /**
+     * @return True if the port may be shared with other sockets that set SO_REUSEPORT, such as another instance of the server
+     */
+    public boolean isReusePort(){
+        return reusePort;
+    }
+
+    public ServerConfig setReusePort(boolean reusePort){
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * @return How many threads accept connections, each on its own socket sharing the port with SO_REUSEPORT
+     */
+    public int getAcceptorThreads(){
+        return acceptorThreads;
+    }
+
+    public ServerConfig setAcceptorThreads(int acceptorThreads){
+        this.acceptorThreads = acceptorThreads;
+        return this;
+    }
+
+    /**
+     * @return How long a stopping server waits for open connections to finish before closing them
+     */
+    public int getDrainTimeoutMillis(){
+        return drainTimeoutMillis;
+    }
+
+    public ServerConfig setDrainTimeoutMillis(int drainTimeoutMillis){
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return The port HTTPS is served on, or 0 to not serve HTTPS
+     */
+    public int getTlsPort(){
+        return tlsPort;
+    }
+
+    public ServerConfig setTlsPort(int tlsPort){
+        this.tlsPort = tlsPort;
+        return this;
+    }
+
+    /**
+     * @return The keystore, PKCS12 or JKS, holding the key and certificate chain HTTPS is served with
+     */
+    public String getTlsKeystore(){
+        return tlsKeystore;
+    }
+
+    public ServerConfig setTlsKeystore(String tlsKeystore){
+        this.tlsKeystore = tlsKeystore;
+        return this;
+    }
+
+    /**
+     * @return The password of the keystore and of the key in it, or null if it has none
+     */
+    public String getTlsKeystorePassword(){
+        return tlsKeystorePassword;
+    }
+
+    public ServerConfig setTlsKeystorePassword(String tlsKeystorePassword){
+        this.tlsKeystorePassword = tlsKeystorePassword;
+        return this;
+    }
+
+    /**
+     * @return How many TLS sessions are kept so that returning clients can resume them
+     */
+    public int getTlsSessionCacheSize(){
+        return tlsSessionCacheSize;
+    }
+
+    public ServerConfig setTlsSessionCacheSize(int tlsSessionCacheSize){
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+        return this;
+    }
+
+    /**
+     * @return How long, in seconds, a TLS session or session ticket can be resumed for
+     */
+    public int getTlsSessionTimeoutSeconds(){
+        return tlsSessionTimeoutSeconds;
+    }
+
+    public ServerConfig setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds){
+        this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+        return this;
+    }
+
+    /**
+     * @return How long a client may take to send the request line and headers of a request, once it has started
+     */
+    public int getHeaderTimeoutMillis(){
+        return headerTimeoutMillis;
+    }
+
+    public ServerConfig setHeaderTimeoutMillis(int headerTimeoutMillis){
+        this.headerTimeoutMillis = headerTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return How long a client may send nothing in the middle of the body of a request
+     */
+    public int getBodyTimeoutMillis(){
+        return bodyTimeoutMillis;
+    }
+
+    public ServerConfig setBodyTimeoutMillis(int bodyTimeoutMillis){
+        this.bodyTimeoutMillis = bodyTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return How long a client may take nothing of a response before its connection is closed
+     */
+    public int getWriteTimeoutMillis(){
+        return writeTimeoutMillis;
+    }
+
+    public ServerConfig setWriteTimeoutMillis(int writeTimeoutMillis){
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return How many connections one client address may have open at once, or 0 for no limit
+     */
+    public int getMaxConnectionsPerClient(){
+        return maxConnectionsPerClient;
+    }
+
+    public ServerConfig setMaxConnectionsPerClient(int maxConnectionsPerClient){
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        return this;
+    }
+
+    /**
+     * @return How many requests per second one client address may send, or 0 for no limit
+     */
+    public int getRateLimit(){
+        return rateLimit;
+    }
+
+    public ServerConfig setRateLimit(int rateLimit){
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
+    /**
+     * @return How many requests one client address may send at once, above its rate
+     */
+    public int getRateLimitBurst(){
+        return rateLimitBurst;
+    }
+
+    public ServerConfig setRateLimitBurst(int rateLimitBurst){
+        this.rateLimitBurst = rateLimitBurst;
+        return this;
+    }
+}
@@ -0,0 +1,39 @@
+package WebServer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The status of a response. The status line is encoded once, when the
+ * status is created, so sending it is only a copy.
+ */
+final class Status {
+    private final int code;
+    private final String text;
+    private final byte[] line;
+
+    /**
+     * @param code The status code, such as 404
+     * @param reason The reason phrase, such as "FILE NOT FOUND"
+     */
+    Status(int code, String reason){
+        this.code = code;
+        this.text = code + " " + reason;
+        this.line = ("HTTP/1.1 " + text + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    int getCode(){
+        return code;
+    }
+
+    /**
+     * @return The whole status line, including its line ending
+     */
+    byte[] line(){
+        return line;
+    }
+
+    @Override
+    public String toString(){
+        return text;
+    }
+}
@@ -0,0 +1,88 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Spools the bodies of POST requests to temporary files, so uploads of any
+ * size only take a read buffer of memory. The handler reads them back from
+ * the file, which is deleted once the request has been answered. Bodies of other methods are discarded.
+ */
+class TempFileBodyHandler implements BodyHandler {
+    private final Path directory;
+
+    /**
+     * @param config The settings deciding where the files are written
+     */
+    TempFileBodyHandler(ServerConfig config){
+        String dir = config.getUploadDir();
+        this.directory = dir == null ? Paths.get(System.getProperty("java.io.tmpdir")) : Paths.get(dir);
+    }
+
+    @Override
+    public Sink open(Request request) throws IOException{
+        if(request.getMethod() != Request.Method.POST){
+            return null;
+        }
+        Path file = Files.createTempFile(directory, "upload-", ".tmp");
+        try{
+            return new FileSink(file, FileChannel.open(file, StandardOpenOption.WRITE));
+        }catch(IOException e){
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * A body written to a file through a channel.
+     */
+    private static final class FileSink implements Sink {
+        private final Path file;
+        private final FileChannel channel;
+        private long size = 0;
+
+        private FileSink(Path file, FileChannel channel){
+            this.file = file;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException{
+            while(data.hasRemaining()){
+                size += channel.write(data);
+            }
+        }
+
+        @Override
+        public void complete() throws IOException{
+            channel.close();
+        }
+
+        @Override
+        public long size(){
+            return size;
+        }
+
+        @Override
+        public ReadableByteChannel open() throws IOException{
+            return FileChannel.open(file, StandardOpenOption.READ);
+        }
+
+        @Override
+        public void release(){
+            try{
+                channel.close();
+                Files.deleteIfExists(file);
+            }catch(IOException e){
+                // Nothing more can be done about it
+            }
+        }
+    }
+}
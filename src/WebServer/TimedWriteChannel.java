@@ -0,0 +1,119 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The channel of a blocking connection, as the responses are written to it.
+ * A blocking write has no timeout of its own, so a client that stops
+ * reading would hold its thread forever. Every write is therefore cut into
+ * slices, and the channel remembers since when the current slice has been
+ * blocked, so a watchdog can close the connection of a client that has
+ * taken nothing for too long. The callers already loop until everything
+ * has been written, as they would for a short write.
+ */
+class TimedWriteChannel implements GatheringByteChannel {
+    // Small enough that a client reading at a few KB per second finishes a slice within the timeout
+    static final int SLICE = 64 * 1024;
+
+    private final SocketChannel channel;
+    // When the write in progress started, 0 if none is
+    private volatile long blockedSince = 0;
+
+    /**
+     * @param channel The connected channel, in blocking mode
+     */
+    TimedWriteChannel(SocketChannel channel){
+        this.channel = channel;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException{
+        int limit = src.limit();
+        if(src.remaining() > SLICE){
+            src.limit(src.position() + SLICE);
+        }
+        blockedSince = System.currentTimeMillis();
+        try{
+            return channel.write(src);
+        }finally{
+            blockedSince = 0;
+            src.limit(limit);
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException{
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+        // Only the buffers up to the end of the slice are written, the last one cut short
+        long budget = SLICE;
+        int end = offset;
+        ByteBuffer cut = null;
+        int limit = 0;
+        while(end < offset + length){
+            ByteBuffer buffer = srcs[end++];
+            if(buffer.remaining() > budget){
+                cut = buffer;
+                limit = buffer.limit();
+                buffer.limit(buffer.position() + (int) budget);
+                break;
+            }
+            budget -= buffer.remaining();
+        }
+        blockedSince = System.currentTimeMillis();
+        try{
+            return channel.write(srcs, offset, end - offset);
+        }finally{
+            blockedSince = 0;
+            if(cut != null){
+                cut.limit(limit);
+            }
+        }
+    }
+
+    /**
+     * Sends a slice of a file with transferTo, which FileChannel only does
+     * without copying when it is given the socket channel itself.
+     *
+     * @param fc The file to send from
+     * @param position Where in the file to start
+     * @param count The number of bytes left to send
+     * @return The number of bytes sent
+     * @throws IOException
+     */
+    long transferFrom(FileChannel fc, long position, long count) throws IOException{
+        blockedSince = System.currentTimeMillis();
+        try{
+            return fc.transferTo(position, Math.min(count, SLICE), channel);
+        }finally{
+            blockedSince = 0;
+        }
+    }
+
+    /**
+     * @param now The current time in milliseconds
+     * @return How long the write in progress has been blocked, 0 if none is
+     */
+    long blockedFor(long now){
+        long since = blockedSince;
+        return since == 0 ? 0 : now - since;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+}
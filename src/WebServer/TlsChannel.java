@@ -0,0 +1,300 @@
+package WebServer;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking connection encrypted with TLS. Reads and writes plain bytes
+ * like the socket channel it wraps, and does the handshake on the way,
+ * whenever the engine asks for it. Like a non-blocking channel, a read or a
+ * write may do nothing, and is tried again when the socket is ready.
+ *
+ * The encrypted bytes go through direct buffers from a pool, which are only
+ * held while they have bytes in them. Bytes that have been encrypted but
+ * not written yet are written by the next write, or by flush, which the
+ * connection calls before it considers a response sent.
+ *
+ * Only used by one reactor thread at a time.
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    // Encrypted bytes read from the socket, ready to be written to
+    private ByteBuffer netIn;
+    // Encrypted bytes to write to the socket, ready to be read from
+    private ByteBuffer netOut;
+    // Decrypted bytes the connection has not read yet, ready to be written to
+    private ByteBuffer appIn;
+    private boolean open = true;
+
+    /**
+     * @param channel The connected channel, in non-blocking mode
+     * @param engine The engine, in server mode
+     * @param pool Where the buffers come from, sized for a whole TLS record
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool pool){
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException{
+        if(!open){
+            throw new ClosedChannelException();
+        }
+        while(true){
+            if(appIn != null && appIn.position() > 0){
+                return drainAppIn(dst);
+            }
+            if(!flush()){
+                // Handshake messages have to go out before anything more can be read
+                return 0;
+            }
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if(status == SSLEngineResult.HandshakeStatus.NEED_TASK){
+                runTasks();
+                continue;
+            }
+            if(status == SSLEngineResult.HandshakeStatus.NEED_WRAP){
+                wrap(EMPTY, 0, 0);
+                continue;
+            }
+            if(engine.isInboundDone()){
+                return -1;
+            }
+            if(netIn != null && netIn.position() > 0){
+                SSLEngineResult result = unwrap();
+                if(result.getStatus() == SSLEngineResult.Status.CLOSED){
+                    // The client sent close_notify, answer it before closing
+                    engine.closeOutbound();
+                    continue;
+                }
+                if(result.getStatus() == SSLEngineResult.Status.OK){
+                    continue;
+                }
+                // BUFFER_UNDERFLOW: the rest of the record has not arrived yet
+            }
+            if(netIn == null){
+                netIn = pool.acquire();
+            }
+            int read = channel.read(netIn);
+            if(read <= 0){
+                if(netIn.position() == 0){
+                    pool.release(netIn);
+                    netIn = null;
+                }
+                if(read == -1){
+                    // Without close_notify, so a truncated response can not be mistaken for a whole one
+                    try{
+                        engine.closeInbound();
+                    }catch(SSLException e){
+                        // Expected when the client did not close the session properly
+                    }
+                }
+                return read;
+            }
+        }
+    }
+
+    /**
+     * Decrypts the records in netIn into appIn.
+     */
+    private SSLEngineResult unwrap() throws SSLException{
+        if(appIn == null){
+            appIn = pool.acquire();
+        }
+        netIn.flip();
+        SSLEngineResult result;
+        try{
+            result = engine.unwrap(netIn, appIn);
+        }finally{
+            netIn.compact();
+        }
+        if(netIn.position() == 0){
+            pool.release(netIn);
+            netIn = null;
+        }
+        if(appIn.position() == 0){
+            pool.release(appIn);
+            appIn = null;
+        }
+        if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+            // A buffer holds a whole record, so this only happens while decrypted bytes are waiting
+            throw new SSLException("A TLS record did not fit in a buffer of " + pool.getBufferSize() + " bytes");
+        }
+        return result;
+    }
+
+    /**
+     * Moves decrypted bytes to the buffer of the connection.
+     */
+    private int drainAppIn(ByteBuffer dst){
+        appIn.flip();
+        int count = Math.min(dst.remaining(), appIn.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + count);
+        dst.put(slice);
+        appIn.position(appIn.position() + count);
+        appIn.compact();
+        if(appIn.position() == 0){
+            pool.release(appIn);
+            appIn = null;
+        }
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException{
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException{
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts as many of the bytes as the socket takes. Bytes are only
+     * taken once the bytes encrypted before them have been written, so at
+     * most one record waits in memory.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+        if(!open){
+            throw new ClosedChannelException();
+        }
+        long consumed = 0;
+        while(flush()){
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if(status == SSLEngineResult.HandshakeStatus.NEED_TASK){
+                runTasks();
+                continue;
+            }
+            if(status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP){
+                // A handshake in the middle of a response has to wait for the client
+                break;
+            }
+            if(!hasRemaining(srcs, offset, length) && status != SSLEngineResult.HandshakeStatus.NEED_WRAP){
+                break;
+            }
+            consumed += wrap(srcs, offset, length).bytesConsumed();
+        }
+        return consumed;
+    }
+
+    /**
+     * Encrypts the bytes, or the handshake message the engine asks for, into netOut.
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException{
+        if(netOut == null){
+            netOut = pool.acquire();
+        }
+        SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+        netOut.flip();
+        if(result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0 &&
+                engine.isOutboundDone() && hasRemaining(srcs, offset, length)){
+            throw new SSLException("The TLS session has been closed");
+        }
+        return result;
+    }
+
+    /**
+     * Writes the encrypted bytes that are waiting.
+     *
+     * @return True if nothing is waiting to be written anymore
+     * @throws IOException If the socket could not be written to
+     */
+    boolean flush() throws IOException{
+        if(netOut == null){
+            return true;
+        }
+        while(netOut.hasRemaining()){
+            if(channel.write(netOut) == 0){
+                return false;
+            }
+        }
+        pool.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    /**
+     * @return True if encrypted bytes are waiting for the socket to become writable
+     */
+    boolean hasPendingOutput(){
+        return netOut != null;
+    }
+
+    /**
+     * @return True if bytes of a request have been read, decrypted or not
+     */
+    boolean hasBufferedInput(){
+        return netIn != null || appIn != null;
+    }
+
+    /**
+     * Runs the work the handshake hands out, such as checking signatures.
+     * It is short enough to run on the reactor thread.
+     */
+    private void runTasks(){
+        Runnable task;
+        while((task = engine.getDelegatedTask()) != null){
+            task.run();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length){
+        for(int i = offset; i < offset + length; i++){
+            if(srcs[i].hasRemaining()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return open;
+    }
+
+    /**
+     * Sends close_notify if the socket takes it right away and gives the
+     * buffers back to the pool. The socket itself is closed by the connection.
+     */
+    @Override
+    public void close(){
+        if(!open){
+            return;
+        }
+        open = false;
+        try{
+            engine.closeOutbound();
+            if(flush()){
+                wrap(EMPTY, 0, 0);
+                flush();
+            }
+        }catch(IOException e){
+            // The connection is going away anyway
+        }
+        for(ByteBuffer buffer : new ByteBuffer[]{netIn, netOut, appIn}){
+            if(buffer != null){
+                pool.release(buffer);
+            }
+        }
+        netIn = null;
+        netOut = null;
+        appIn = null;
+    }
+}
@@ -0,0 +1,75 @@
+package WebServer;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * What every HTTPS connection shares: the key and certificate from the
+ * keystore, the cache of sessions and the pool of buffers. A client that
+ * comes back resumes its session, from the cache or from the ticket the
+ * server gave it, instead of going through a full handshake with its
+ * public key operations again.
+ */
+class TlsContext {
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final String[] APPLICATION_PROTOCOLS = {"http/1.1"};
+    // Enough for a few hundred connections in the middle of a record at once
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final SSLContext context;
+    private final BufferPool pool;
+
+    /**
+     * Loads the keystore and sets up the sessions as configured.
+     *
+     * @param config The settings naming the keystore
+     * @throws IOException If the keystore can not be read or holds no usable key
+     */
+    TlsContext(ServerConfig config) throws IOException{
+        if(config.getTlsKeystore() == null){
+            throw new IOException("HTTPS needs a keystore, set WEBSERVER_TLS_KEYSTORE");
+        }
+        char[] password = config.getTlsKeystorePassword() == null
+                ? new char[0] : config.getTlsKeystorePassword().toCharArray();
+        try{
+            KeyStore keyStore = KeyStore.getInstance(new File(config.getTlsKeystore()), password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+        }catch(GeneralSecurityException | IllegalArgumentException e){
+            throw new IOException("Could not load the keystore " + config.getTlsKeystore() + ": " + e.getMessage(), e);
+        }
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+        sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+
+        SSLSession session = context.createSSLEngine().getSession();
+        pool = new BufferPool(Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize()),
+                MAX_POOLED_BUFFERS);
+    }
+
+    /**
+     * @param channel A connection that was just accepted, in non-blocking mode
+     * @return The connection, to be read and written through TLS
+     */
+    TlsChannel open(SocketChannel channel){
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(PROTOCOLS);
+        parameters.setApplicationProtocols(APPLICATION_PROTOCOLS);
+        engine.setSSLParameters(parameters);
+        return new TlsChannel(channel, engine, pool);
+    }
+}
@@ -2,36 +2,365 @@ package WebServer;
 
 import java.io.IOException;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
 
+/**
+ * A server that can be started, stopped and waited for. Stopping closes the
+ * listening sockets first, so no new connections are accepted, then lets
+ * the open connections finish the request they are on until the drain
+ * timeout, and only then closes what is left.
+ *
+ * Several servers, in one process or in several, can share a port with
+ * SO_REUSEPORT, and the kernel spreads new connections over them. A new
+ * version of the server can therefore be started next to the old one,
+ * which is then sent SIGTERM and drains without dropping a connection.
+ *
+ * With a TLS port HTTPS is served next to HTTP, by the reactors of the NIO
+ * engine whichever engine serves HTTP, as the handshake and the records
+ * are driven by the readiness of the socket.
+ */
 public class WebServer {
+    private final ServerConfig config;
+    private final RequestProcessor processor;
+    private final AccessLog accessLog;
+    private final ClientLimiter limiter;
+    private final List<ServerSocketChannel> listeners = new ArrayList<>();
+    private final List<ServerSocketChannel> tlsListeners = new ArrayList<>();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private ConnectionDispatcher dispatcher;
+    private NioServer nioServer;
+    private TlsContext tls;
+    private boolean started = false;
+    private boolean stopping = false;
 
     public static void main(String args[]){
         WebServer.StartServer();
     }
 
+    /**
+     * Method for starting the WebServer with the settings given in the environment
+     */
+    public static void StartServer(){
+        StartServer(ServerConfig.fromEnvironment());
+    }
 
-    private final static boolean DEBUG = Boolean.parseBoolean(System.getenv("JAVA_DEBUG"));
-    private final static int PORT = 5000;
+    /**
+     * Method for starting the WebServer. Every accepted connection is handed
+     * over to the dispatcher, so the accept loop is never blocked by a slow client.
+     * With the NIO engine the connections are instead served by a few reactor threads.
+     * Returns once the server has been stopped, which SIGTERM does after draining it.
+     *
+     * @param config The settings to start the server with
+     */
+    public static void StartServer(ServerConfig config){
+        StartServer(config, router -> {});
+    }
 
     /**
-     * Method for starting the WebServer
+     * Method for starting the WebServer with handlers of its own next to the
+     * static files, such as a few dynamic endpoints.
+     *
+     * @param config The settings to start the server with
+     * @param routes Adds the handlers to the router before the server is started
      */
-    public static void StartServer(){
-        try (ServerSocket server = new ServerSocket(PORT)) {
+    static void StartServer(ServerConfig config, Consumer<Router> routes){
+        StartServer(config, new TempFileBodyHandler(config), routes);
+    }
 
-            while(true){
-                Socket client = server.accept();
-                if(DEBUG){
-                    System.out.println("Connected to client: " + client.getInetAddress() + " " +client.getPort());
+    /**
+     * Method for starting the WebServer with handlers of its own, and a body
+     * handler of its own for the bodies of the requests they answer.
+     *
+     * @param config The settings to start the server with
+     * @param bodyHandler Where the bodies of requests are written while they are read
+     * @param routes Adds the handlers to the router before the server is started
+     */
+    static void StartServer(ServerConfig config, BodyHandler bodyHandler, Consumer<Router> routes){
+        WebServer server = new WebServer(config, bodyHandler, routes);
+        try{
+            server.start();
+        }catch(IOException e){
+            e.printStackTrace();
+            server.stop(0);
+            return;
+        }
+        // SIGTERM and SIGINT run the shutdown hooks, and the JVM exits once they return
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(config.getDrainTimeoutMillis()),
+                "http-shutdown"));
+        try{
+            server.await();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates a server that serves the static files of the configuration.
+     *
+     * @param config The settings to start the server with
+     */
+    public WebServer(ServerConfig config){
+        this(config, router -> {});
+    }
+
+    /**
+     * Creates a server with handlers of its own next to the static files.
+     *
+     * @param config The settings to start the server with
+     * @param routes Adds the handlers to the router before the server is started
+     */
+    WebServer(ServerConfig config, Consumer<Router> routes){
+        this(config, new TempFileBodyHandler(config), routes);
+    }
+
+    /**
+     * Creates a server with handlers of its own, which read the bodies of
+     * their requests from the given body handler.
+     *
+     * @param config The settings to start the server with
+     * @param bodyHandler Where the bodies of requests are written while they are read
+     * @param routes Adds the handlers to the router before the server is started
+     */
+    WebServer(ServerConfig config, BodyHandler bodyHandler, Consumer<Router> routes){
+        this.config = config;
+        FileCache cache = new FileCache(config, new MimeTypes(config));
+        CompressionCache compressionCache = new CompressionCache(config);
+        PathCache pathCache = new PathCache(config);
+        this.accessLog = openAccessLog(config);
+        this.processor = new RequestProcessor(config, cache, compressionCache, pathCache,
+                bodyHandler, new Metrics(cache, compressionCache, pathCache, accessLog), accessLog);
+        this.limiter = new ClientLimiter(config);
+        routes.accept(processor.getRouter());
+    }
+
+    /**
+     * Binds the port and starts accepting connections, on one thread per
+     * listening socket. Returns at once, the acceptor threads keep the JVM
+     * running until the server is stopped.
+     *
+     * @throws IOException If the port could not be bound
+     */
+    public synchronized void start() throws IOException{
+        if(started){
+            throw new IllegalStateException("The server has already been started");
+        }
+        started = true;
+        try{
+            int acceptors = Math.max(1, config.getAcceptorThreads());
+            boolean reusePort = config.isReusePort() || acceptors > 1;
+            if(reusePort && !reusePortSupported()){
+                System.err.println("SO_REUSEPORT is not supported on this platform, using a single acceptor");
+                reusePort = false;
+                acceptors = 1;
+            }
+            listeners.add(bind(reusePort, config.getPort()));
+            // With port 0 the others have to share the port the system picked for the first
+            for(int i = 1; i < acceptors; i++){
+                listeners.add(bind(reusePort, getPort()));
+            }
+            if(config.getTlsPort() > 0){
+                tls = new TlsContext(config);
+                tlsListeners.add(bind(reusePort, config.getTlsPort()));
+                for(int i = 1; i < acceptors; i++){
+                    tlsListeners.add(bind(reusePort, getTlsPort()));
                 }
-                Thread thread = new Thread(new HttpRequest(client, DEBUG));
-                thread.run();
             }
+            if(config.getEngine() == ServerConfig.Engine.NIO || tls != null){
+                nioServer = new NioServer(config, processor, limiter);
+                nioServer.start();
+            }
+            if(config.getEngine() == ServerConfig.Engine.BLOCKING){
+                dispatcher = new ConnectionDispatcher(config, processor, limiter);
+            }
+        }catch(IOException e){
+            closeListeners();
+            throw e;
+        }
+        for(int i = 0; i < listeners.size(); i++){
+            ServerSocketChannel listener = listeners.get(i);
+            new Thread(() -> accept(listener, null), "http-acceptor-" + (i + 1)).start();
+        }
+        for(int i = 0; i < tlsListeners.size(); i++){
+            ServerSocketChannel listener = tlsListeners.get(i);
+            new Thread(() -> accept(listener, tls), "https-acceptor-" + (i + 1)).start();
+        }
+    }
+
+    /**
+     * @return True if listening sockets can share a port on this platform
+     * @throws IOException If a socket could not be opened to find out
+     */
+    private static boolean reusePortSupported() throws IOException{
+        try(ServerSocketChannel server = ServerSocketChannel.open()){
+            return server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
 
-        } catch (IOException e) {
+    /**
+     * @param reusePort True if the port may be shared with other sockets
+     * @param port The port to listen on
+     * @return A socket listening on the configured address and the port
+     * @throws IOException If the port could not be bound
+     */
+    private ServerSocketChannel bind(boolean reusePort, int port) throws IOException{
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try{
+            if(reusePort){
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            SocketAddress address = config.getBindAddress() == null
+                    ? new InetSocketAddress(port)
+                    : new InetSocketAddress(config.getBindAddress(), port);
+            server.bind(address, config.getBacklog());
+            return server;
+        }catch(IOException e){
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Accepts connections on one listening socket until it is closed.
+     * Connections are accepted through a channel, even by the blocking
+     * engine, so that files can be sent with transferTo.
+     *
+     * @param listener The listening socket
+     * @param tls Where the TLS sessions come from if the socket serves HTTPS, or null
+     */
+    private void accept(ServerSocketChannel listener, TlsContext tls){
+        try{
+            while(true){
+                SocketChannel client = listener.accept();
+                if(config.isDebug()){
+                    System.out.println("Connected to client: " + client.socket().getInetAddress() + " " + client.socket().getPort());
+                }
+                if(tls != null || dispatcher == null){
+                    nioServer.dispatch(client, tls);
+                }else{
+                    dispatcher.dispatch(client.socket());
+                }
+            }
+        }catch(ClosedChannelException e){
+            // The server is stopping
+        }catch(IOException e){
             e.printStackTrace();
+            stop(config.getDrainTimeoutMillis());
+        }
+    }
+
+    /**
+     * Stops accepting connections, waits for the open ones to finish their
+     * current request and closes them. Returns once the server has stopped.
+     *
+     * @param drainMillis How long to wait for the open connections before closing them anyway
+     */
+    public void stop(long drainMillis){
+        synchronized(this){
+            if(stopping){
+                awaitQuietly();
+                return;
+            }
+            stopping = true;
+        }
+        long deadline = System.currentTimeMillis() + drainMillis;
+        // Responses from now on close their connections
+        processor.drain();
+        closeListeners();
+        if(nioServer != null){
+            if(!nioServer.drain(deadline)){
+                System.err.println("Closing " + nioServer.activeConnections() + " connections still open after the drain timeout");
+            }
+            nioServer.stop();
+        }
+        if(dispatcher != null){
+            if(!dispatcher.drain(deadline)){
+                System.err.println("Closing " + dispatcher.activeConnections() + " connections still open after the drain timeout");
+            }
+            dispatcher.shutdown();
+        }
+        if(accessLog != null){
+            accessLog.close();
+        }
+        terminated.countDown();
+    }
+
+    /**
+     * Waits until the server has stopped.
+     *
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public void await() throws InterruptedException{
+        terminated.await();
+    }
+
+    private void awaitQuietly(){
+        try{
+            await();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The port the server listens on, which is the one picked by the
+     *         system if the configured port is 0, or -1 if it is not listening
+     */
+    public synchronized int getPort(){
+        try{
+            return listeners.isEmpty() ? -1 : ((InetSocketAddress) listeners.get(0).getLocalAddress()).getPort();
+        }catch(IOException e){
+            return -1;
+        }
+    }
+
+    /**
+     * @return The port the server serves HTTPS on, or -1 if it does not
+     */
+    public synchronized int getTlsPort(){
+        try{
+            return tlsListeners.isEmpty() ? -1 : ((InetSocketAddress) tlsListeners.get(0).getLocalAddress()).getPort();
+        }catch(IOException e){
+            return -1;
+        }
+    }
+
+    private synchronized void closeListeners(){
+        List<ServerSocketChannel> all = new ArrayList<>(listeners);
+        all.addAll(tlsListeners);
+        for(ServerSocketChannel listener : all){
+            try{
+                listener.close();
+            }catch(IOException e){
+                // Nothing more can be done about it
+            }
+        }
+    }
+
+    /**
+     * Opens the access log, if one is configured. The entries still in its
+     * buffer are written when the server stops.
+     *
+     * @param config The settings of the server
+     * @return The access log, or null if requests are not logged
+     */
+    private static AccessLog openAccessLog(ServerConfig config){
+        if(config.getAccessLog() == null){
+            return null;
+        }
+        try{
+            return new AccessLog(config);
+        }catch(IOException e){
+            System.err.println("Could not open the access log, requests are not logged: " + e.getMessage());
+            return null;
         }
     }
 }
@@ -0,0 +1,88 @@
+package WebServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Every request path is made canonical before it is routed and resolved,
+ * so these are the spellings a request could use to get outside of the
+ * document root or around a route.
+ */
+class DocumentRootTest {
+
+    @Test
+    void rejectsPathsClimbingOutOfTheRoot(){
+        for(String target : new String[]{"/..", "/../x", "/%2e%2e/x", "/%2E%2E/x", "/.%2e/x", "/a/../../x",
+                "/a/%2e%2e/%2e%2e/x", "/./../x", "/a/b/../../../x"}){
+            assertNull(DocumentRoot.canonicalize(target), target);
+        }
+    }
+
+    @Test
+    void rejectsNulAndMalformedEscapes(){
+        for(String target : new String[]{"/a%00b", "/a%", "/a%2", "/a%zz", "/a%2g", "/%%32%65", "/a%0"}){
+            assertNull(DocumentRoot.canonicalize(target), target);
+        }
+    }
+
+    @Test
+    void rejectsInvalidUtf8(){
+        for(String target : new String[]{"/%FF", "/%C3%28", "/%C3", "/%E2%82", "/%C0%AF", "/%ED%A0%80", "/é"}){
+            assertNull(DocumentRoot.canonicalize(target), target);
+        }
+    }
+
+    @Test
+    void rejectsTargetsThatAreNotPaths(){
+        for(String target : new String[]{"", "*", "x/y", "http://host/x", "?x"}){
+            assertNull(DocumentRoot.canonicalize(target), target);
+        }
+    }
+
+    @Test
+    void stripsTheQueryAndFragment(){
+        assertEquals("/a/b", DocumentRoot.canonicalize("/a/b?x=1"));
+        assertEquals("/a/b", DocumentRoot.canonicalize("/a/b#top"));
+        assertEquals("/a", DocumentRoot.canonicalize("/a?x=/../../etc"));
+        // An escaped ? is part of the name
+        assertEquals("/a?b", DocumentRoot.canonicalize("/a%3Fb"));
+    }
+
+    @Test
+    void normalizesSegments(){
+        assertEquals("/a/b/c", DocumentRoot.canonicalize("/a/./b//c"));
+        assertEquals("/a/c", DocumentRoot.canonicalize("/a/b/../c/"));
+        assertEquals("/", DocumentRoot.canonicalize("/"));
+        assertEquals("/", DocumentRoot.canonicalize("/a/.."));
+        assertEquals("/metrics", DocumentRoot.canonicalize("/%6Detrics"));
+        assertEquals("/metrics", DocumentRoot.canonicalize("/x/../metrics"));
+        assertEquals("/private/s.txt", DocumentRoot.canonicalize("/public/../private/s.txt"));
+    }
+
+    @Test
+    void decodesUtf8(){
+        assertEquals("/a b", DocumentRoot.canonicalize("/a%20b"));
+        assertEquals("/a+b", DocumentRoot.canonicalize("/a+b"));
+        assertEquals("/café", DocumentRoot.canonicalize("/caf%C3%A9"));
+        assertEquals("/€", DocumentRoot.canonicalize("/%E2%82%AC"));
+    }
+
+    @Test
+    void resolvesFilesAndDirectoryIndexes(@TempDir Path directory) throws IOException{
+        Files.createDirectories(directory.resolve("sub dir"));
+        Path file = Files.writeString(directory.resolve("sub dir/a.txt"), "a");
+        Path index = Files.writeString(directory.resolve("sub dir/index.html"), "i");
+        DocumentRoot root = new DocumentRoot(directory.toString(), new PathCache(new ServerConfig()));
+
+        assertEquals(file.toAbsolutePath().normalize(), root.resolve(DocumentRoot.canonicalize("/sub%20dir/./a.txt")));
+        assertEquals(index.toAbsolutePath().normalize(), root.resolve(DocumentRoot.canonicalize("/sub%20dir/")));
+        assertNull(root.resolve(DocumentRoot.canonicalize("/missing.txt")));
+    }
+}
@@ -0,0 +1,296 @@
+package WebServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The parser decides where one request ends and the next one begins on a
+ * kept alive connection, so it is tested the way connections feed it:
+ * in pieces of any size, with pipelined requests behind each other.
+ */
+class RequestParserTest {
+    private static final long MAX_BODY = 1024;
+
+    /**
+     * What a connection saw of one parsed request.
+     */
+    private static final class Parsed {
+        final String method;
+        final String target;
+        final int error;
+        final String body;
+        final boolean keepAlive;
+
+        Parsed(Request request){
+            method = request.getRequestMethod();
+            target = request.getFileName();
+            error = request.getErrorStatus();
+            body = request.getBody() == null ? null : ((MemorySink) request.getBody()).text();
+            keepAlive = request.isKeepAlive();
+        }
+
+        @Override
+        public String toString(){
+            return method + " " + target + " error=" + error + " body=" + body + " keepAlive=" + keepAlive;
+        }
+    }
+
+    /**
+     * Keeps bodies in memory so they can be compared.
+     */
+    private static final class MemorySink implements BodyHandler.Sink {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private boolean complete;
+
+        @Override
+        public void write(ByteBuffer data){
+            while(data.hasRemaining()){
+                bytes.write(data.get());
+            }
+        }
+
+        @Override
+        public void complete(){
+            complete = true;
+        }
+
+        @Override
+        public long size(){
+            return bytes.size();
+        }
+
+        @Override
+        public ReadableByteChannel open(){
+            return Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray()));
+        }
+
+        @Override
+        public void release(){
+        }
+
+        String text(){
+            return complete ? bytes.toString(StandardCharsets.ISO_8859_1) : "<incomplete>";
+        }
+    }
+
+    private static RequestParser parser(){
+        return new RequestParser(request -> new MemorySink(), MAX_BODY);
+    }
+
+    /**
+     * Feeds the bytes the way HttpRequest does, in pieces cut at the given
+     * offsets, answering every request as soon as it is complete. A
+     * malformed request ends the connection, as it is never kept alive.
+     *
+     * @param data The bytes the client sent
+     * @param cuts Where the reads end, in increasing order
+     * @return The requests that were completed
+     */
+    private static List<Parsed> feed(String data, int... cuts){
+        byte[] bytes = data.getBytes(StandardCharsets.ISO_8859_1);
+        RequestParser parser = parser();
+        List<Parsed> parsed = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+        int from = 0;
+        for(int i = 0; i <= cuts.length; i++){
+            int to = i < cuts.length ? cuts[i] : bytes.length;
+            buffer.put(bytes, from, to - from);
+            from = to;
+            buffer.flip();
+            while(parser.parse(buffer)){
+                Parsed request = new Parsed(parser.getRequest());
+                parsed.add(request);
+                parser.reset();
+                if(request.error != 0){
+                    return parsed;
+                }
+            }
+            buffer.compact();
+        }
+        return parsed;
+    }
+
+    private static Parsed single(String data){
+        List<Parsed> parsed = feed(data);
+        assertEquals(1, parsed.size(), parsed.toString());
+        return parsed.get(0);
+    }
+
+    @Test
+    void parsesASimpleRequest(){
+        Parsed request = single("GET /index.html HTTP/1.1\r\nHost: x\r\n\r\n");
+        assertEquals("GET", request.method);
+        assertEquals("/index.html", request.target);
+        assertEquals(0, request.error);
+        assertEquals(null, request.body);
+        assertTrue(request.keepAlive);
+    }
+
+    @Test
+    void splitReadsAtEveryByteGiveTheSameRequests(){
+        String data = "\r\nPOST /a HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello" +
+                "POST /b HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "3;ext=1\r\nabc\r\nA\r\n0123456789\r\n0\r\nTrailer: t\r\n\r\n" +
+                "GET /c HTTP/1.1\r\nConnection: close\r\n\r\n";
+        String expected = feed(data).toString();
+        assertEquals(3, feed(data).size(), expected);
+        assertTrue(expected.contains("body=hello"), expected);
+        assertTrue(expected.contains("body=abc0123456789"), expected);
+        for(int cut = 0; cut <= data.length(); cut++){
+            assertEquals(expected, feed(data, cut).toString(), "split at " + cut);
+        }
+        int[] everyByte = new int[data.length()];
+        for(int i = 0; i < everyByte.length; i++){
+            everyByte[i] = i;
+        }
+        assertEquals(expected, feed(data, everyByte).toString());
+    }
+
+    @Test
+    void pipelinedRequestsAreParsedInOrder(){
+        List<Parsed> parsed = feed("GET /1 HTTP/1.1\r\n\r\nHEAD /2 HTTP/1.1\r\n\r\n" +
+                "POST /3 HTTP/1.1\r\nContent-Length: 3\r\n\r\nxyzGET /4 HTTP/1.1\r\n\r\n");
+        assertEquals(4, parsed.size());
+        assertEquals("/1", parsed.get(0).target);
+        assertEquals("HEAD", parsed.get(1).method);
+        assertEquals("xyz", parsed.get(2).body);
+        assertEquals("/4", parsed.get(3).target);
+    }
+
+    @Test
+    void leavesTheNextRequestInTheBuffer(){
+        RequestParser parser = parser();
+        ByteBuffer buffer = ByteBuffer.wrap("GET /1 HTTP/1.1\r\n\r\nGET /2".getBytes(StandardCharsets.ISO_8859_1));
+        assertTrue(parser.parse(buffer));
+        assertEquals("GET /2", StandardCharsets.ISO_8859_1.decode(buffer).toString());
+    }
+
+    @Test
+    void rejectsMalformedChunkSizes(){
+        String head = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        for(String chunks : new String[]{
+                "zz\r\nab\r\n0\r\n\r\n",                // Not hex
+                "\r\nab\r\n0\r\n\r\n",                  // No size at all
+                "-1\r\nab\r\n0\r\n\r\n",                // A sign
+                "0x2\r\nab\r\n0\r\n\r\n",               // A prefix
+                "1000000000000000\r\n",                  // 16 digits
+                "2\r\nabX\r\n0\r\n\r\n",                // Data longer than its size
+        }){
+            Parsed request = single(head + chunks);
+            assertEquals(400, request.error, chunks);
+            assertFalse(request.keepAlive, chunks);
+        }
+    }
+
+    @Test
+    void rejectsOversizeBodies(){
+        Parsed declared = single("POST / HTTP/1.1\r\nContent-Length: " + (MAX_BODY + 1) + "\r\n\r\n");
+        assertEquals(413, declared.error);
+        assertFalse(declared.keepAlive);
+
+        Parsed chunked = single("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "200\r\n" + "a".repeat(0x200) + "\r\n" + "201\r\n");
+        assertEquals(413, chunked.error);
+
+        Parsed huge = single("POST / HTTP/1.1\r\nContent-Length: 99999999999999999999\r\n\r\n");
+        assertEquals(400, huge.error);
+    }
+
+    @Test
+    void rejectsInvalidContentLength(){
+        for(String value : new String[]{"abc", "-5", "+5", "5 5", ""}){
+            assertEquals(400, single("POST / HTTP/1.1\r\nContent-Length: " + value + "\r\n\r\n").error, value);
+        }
+    }
+
+    @Test
+    void rejectsContentLengthsThatDisagree(){
+        Parsed request = single("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 10\r\n\r\nhello");
+        assertEquals(400, request.error);
+        assertFalse(request.keepAlive);
+    }
+
+    @Test
+    void acceptsARepeatedContentLengthWithTheSameValue(){
+        Parsed request = single("POST / HTTP/1.1\r\nContent-Length: 5\r\ncontent-length: 5\r\n\r\nhello");
+        assertEquals(0, request.error);
+        assertEquals("hello", request.body);
+    }
+
+    @Test
+    void rejectsARepeatedTransferEncoding(){
+        Parsed request = single("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "0\r\n\r\n");
+        assertEquals(400, request.error);
+    }
+
+    @Test
+    void onlyFramesChunkedWhenItIsTheLastCoding(){
+        for(String codings : new String[]{"chunked, identity", "identity", "chunked, chunked", "gzip"}){
+            Parsed request = single("POST / HTTP/1.1\r\nTransfer-Encoding: " + codings + "\r\n\r\n0\r\n\r\n");
+            assertEquals(400, request.error, codings);
+        }
+        Parsed request = single("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, Chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n");
+        assertEquals(0, request.error);
+        assertEquals("abc", request.body);
+    }
+
+    @Test
+    void rejectsWhitespaceBeforeTheColon(){
+        for(String header : new String[]{"Transfer-Encoding : chunked", "Transfer-Encoding\t: chunked", "Host : x"}){
+            Parsed request = single("POST / HTTP/1.1\r\n" + header + "\r\nContent-Length: 4\r\n\r\n0\r\n\r\n");
+            assertEquals(400, request.error, header);
+            assertFalse(request.keepAlive, header);
+        }
+    }
+
+    @Test
+    void transferEncodingWinsOverContentLengthAndClosesTheConnection(){
+        List<Parsed> parsed = feed("POST / HTTP/1.1\r\nContent-Length: 3\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "5\r\nhello\r\n0\r\n\r\nGET /next HTTP/1.1\r\n\r\n");
+        assertEquals("hello", parsed.get(0).body);
+        assertFalse(parsed.get(0).keepAlive);
+    }
+
+    @Test
+    void sendsContinueOnceAfterTheHeaders(){
+        RequestParser parser = parser();
+        ByteBuffer buffer = ByteBuffer.wrap(("POST / HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 2\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        assertFalse(parser.parse(buffer));
+        assertTrue(parser.takeContinue());
+        assertFalse(parser.takeContinue());
+        assertTrue(parser.parse(ByteBuffer.wrap(new byte[]{'o', 'k'})));
+        assertEquals("ok", ((MemorySink) parser.getRequest().getBody()).text());
+    }
+
+    @Test
+    void doesNotSendContinueForABodyThatIsTooLarge(){
+        RequestParser parser = parser();
+        ByteBuffer buffer = ByteBuffer.wrap(("POST / HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 5000\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        assertTrue(parser.parse(buffer));
+        assertFalse(parser.takeContinue());
+        assertEquals(413, parser.getRequest().getErrorStatus());
+    }
+
+    @Test
+    void rejectsMalformedHeadersAndRequestLines(){
+        assertEquals(400, single("GET /\r\n\r\n").error);
+        assertEquals(400, single("GET / HTTP/1.1\r\nNo colon\r\n\r\n").error);
+        assertEquals(414, single("GET /" + "a".repeat(9000) + " HTTP/1.1\r\n\r\n").error);
+        assertEquals(431, single("GET / HTTP/1.1\r\nX: " + "a".repeat(9000) + "\r\n\r\n").error);
+    }
+}